@@ -0,0 +1,44 @@
+package common.data;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Helpers shared by the benchmarks: the directories their stores are
+ * created in, and the keys they use, made up front so that the benchmarks
+ * do not measure building them.
+ */
+final class Benchmarks {
+
+	private Benchmarks() { }
+
+	static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/** Deletes the directory and everything in it. */
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				delete(file);
+		}
+		dir.delete();
+	}
+
+	static String[] keys(String prefix, int n) {
+		String[] keys = new String[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = prefix + i;
+		return keys;
+	}
+
+	/**
+	 * @return the index after the given one in a walk that visits every
+	 *   index below n in an order unrelated to the keys' insertion order
+	 */
+	static int next(int i, int n) {
+		return (int) ((i + 7919L) % n); // a prime that divides no n used
+	}
+
+}
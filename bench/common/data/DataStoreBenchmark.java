@@ -0,0 +1,60 @@
+package common.data;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Allocation churn in a data file holding {@link #LIVE} values: each
+ * operation frees the oldest value and writes a new one, by value size and
+ * by block size. Values up to the largest slot size go in slabs, others in
+ * chains of blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataStoreBenchmark {
+
+	private static final int LIVE = 4096;
+
+	@Param({"16", "100", "1000", "10000"})
+	public int valueSize;
+
+	@Param({"64", "512"})
+	public int blockSize;
+
+	private File dir;
+	private DataStore store;
+	private long[] addrs; // of the live values, oldest at next
+	private byte[] value;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Benchmarks.tempDir("data");
+		store = new DataStore(dir, blockSize, false, null);
+		value = new byte[valueSize];
+		addrs = new long[LIVE];
+		for (int i = 0; i < LIVE; i++)
+			addrs[i] = store.write(value);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.close();
+		Benchmarks.delete(dir);
+	}
+
+	@Benchmark
+	public long freeThenWrite() throws IOException {
+		int i = next;
+		next = (next + 1) % LIVE;
+		store.free(addrs[i]);
+		return addrs[i] = store.write(value);
+	}
+
+}
@@ -0,0 +1,71 @@
+package common.data;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Lookups in a file-based hash index of {@link #CAPACITY} rows, by load
+ * factor, and by whether the index is split: then the index has just
+ * doubled from half the capacity, and keys not yet rehashed are probed for
+ * in the old table after the new one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashIndexBenchmark {
+
+	private static final int CAPACITY = 1 << 16;
+
+	/**
+	 * The keys per row; above half the maximum load factor, so that a
+	 * split index has split once.
+	 */
+	@Param({"0.4", "0.55", "0.69"})
+	public float loadFactor;
+
+	@Param({"false", "true"})
+	public boolean split;
+
+	private File dir;
+	private HashIndex index;
+	private String[] keys;
+	private String[] absentKeys;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Benchmarks.tempDir("index");
+		index = new HashIndex(dir, split ? CAPACITY / 2 : CAPACITY,
+			new StoreOptions(), null);
+		keys = Benchmarks.keys("key", (int) (loadFactor * CAPACITY));
+		absentKeys = Benchmarks.keys("absent", keys.length);
+		for (int i = 0; i < keys.length; i++)
+			index.putLong(keys[i], i);
+		// nothing rehashes but the processor's idle steps
+		if ((index.rows() > CAPACITY) != split)
+			throw new IllegalStateException("Index split unexpectedly.");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		index.close();
+		Benchmarks.delete(dir);
+	}
+
+	@Benchmark
+	public long lookupHit() throws IOException {
+		return index.lookup(keys[next = Benchmarks.next(next, keys.length)]);
+	}
+
+	@Benchmark
+	public long lookupMiss() throws IOException {
+		return index.lookup(
+			absentKeys[next = Benchmarks.next(next, absentKeys.length)]);
+	}
+
+}
@@ -0,0 +1,114 @@
+package common.data;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.*;
+
+/**
+ * Synchronous operations on a store of {@link #KEYS} keys with default
+ * options, by value size and by block size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+	private static final int KEYS = 10000;
+
+	/** The length of the values in their persisted form. */
+	@Param({"16", "256", "4096"})
+	public int valueSize;
+
+	@Param({"64", "512", "4096"})
+	public int blockSize;
+
+	private File dir;
+	private PersistentKeyValueStore<Value> store;
+	private String[] keys;
+	private String[] movedKeys;
+	private boolean[] moved; // whether a key is under its moved name
+	private Value value;
+	private Value container;
+	private int next;
+
+	/** A value of fixed length. */
+	static class Value implements Persistable {
+		private final byte[] bytes;
+
+		Value(int length) {
+			bytes = new byte[length];
+		}
+
+		@Override
+		public void persist(OutputStream os) throws IOException {
+			os.write(bytes);
+		}
+
+		@Override
+		public void reconstruct(InputStream is) throws IOException {
+			new DataInputStream(is).readFully(bytes);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Benchmarks.tempDir("store");
+		store = new PersistentKeyValueStore<Value>(dir, blockSize, KEYS * 2);
+		keys = Benchmarks.keys("key", KEYS);
+		movedKeys = Benchmarks.keys("moved", KEYS);
+		moved = new boolean[KEYS];
+		value = new Value(valueSize);
+		container = new Value(valueSize);
+		for (String key : keys)
+			store.put(key, value);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		store.shutdown();
+		Benchmarks.delete(dir);
+	}
+
+	/** @return the index of the key of the next operation */
+	private int nextKey() {
+		return next = Benchmarks.next(next, KEYS);
+	}
+
+	private String keyAt(int i) {
+		return moved[i] ? movedKeys[i] : keys[i];
+	}
+
+	@Benchmark
+	public boolean get() {
+		return store.get(keyAt(nextKey()), container);
+	}
+
+	/** Overwrites the value of a key. */
+	@Benchmark
+	public boolean put() {
+		return store.put(keyAt(nextKey()), value);
+	}
+
+	/** Removes a key, then puts it back so that the store stays full. */
+	@Benchmark
+	public boolean removeThenPut() {
+		String key = keyAt(nextKey());
+		return store.remove(key) & store.put(key, value);
+	}
+
+	/** Moves a key to its other name, back and forth. */
+	@Benchmark
+	public boolean move() {
+		int i = nextKey();
+		String key = keyAt(i);
+		moved[i] = !moved[i];
+		return store.move(key, keyAt(i));
+	}
+
+}
@@ -0,0 +1,166 @@
+package common.data;
+
+import java.io.*;
+
+/**
+ * A Bloom filter of 128-bit key hashes, which tells that a key is not
+ * mapped without probing the index files. Only the processor thread may add
+ * hashes; any thread may test them.
+ */
+class BloomFilter {
+
+	// about 1% false positives at the expected number of keys
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	// the first int of a saved filter; it is rewritten as DIRTY once the
+	// filter is loaded, so that it is only trusted if saved again
+	private static final int CLEAN = 0x426c6f6d;
+	private static final int DIRTY = 0;
+
+	private final long[] words;
+	private final int expectedKeys;
+	private int count; // hashes added that the filter did not yet contain
+
+	/**
+	 * @param expectedKeys the number of keys the filter is sized for
+	 */
+	BloomFilter(int expectedKeys) {
+		this(expectedKeys, 0,
+			new long[(int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64)]);
+	}
+
+	private BloomFilter(int expectedKeys, int count, long[] words) {
+		this.expectedKeys = expectedKeys;
+		this.count = count;
+		this.words = words;
+	}
+
+	/**
+	 * @return the bit for the i-th hash function; the functions are
+	 *   combinations of the two halves of the key hash
+	 */
+	private long bit(long hi, long lo, int i) {
+		return ((hi + i * (lo | 1L)) & Long.MAX_VALUE) % ((long) words.length * 64);
+	}
+
+	void add(long hi, long lo) {
+		boolean added = false;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = bit(hi, lo, i);
+			int w = (int) (bit >>> 6);
+			if ((words[w] & 1L << bit) == 0L) {
+				words[w] |= 1L << bit;
+				added = true;
+			}
+		}
+		if (added)
+			count++;
+	}
+
+	/**
+	 * @return false if the hash was certainly never added
+	 */
+	boolean mightContain(long hi, long lo) {
+		for (int i = 0; i < HASHES; i++) {
+			long bit = bit(hi, lo, i);
+			if ((words[(int) (bit >>> 6)] & 1L << bit) == 0L)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true once more keys were added than the filter was sized
+	 *   for, so that it should be rebuilt larger
+	 */
+	boolean isFull() {
+		return count > expectedKeys;
+	}
+
+	/**
+	 * Writes the filter to the given output, to be read back by
+	 * {@link #readFrom}.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(expectedKeys);
+		out.writeInt(count);
+		out.writeInt(words.length);
+		for (long word : words)
+			out.writeLong(word);
+	}
+
+	/**
+	 * Reads a filter written by {@link #writeTo}.
+	 */
+	static BloomFilter readFrom(DataInput in) throws IOException {
+		int expectedKeys = in.readInt();
+		int count = in.readInt();
+		int n = in.readInt();
+		if (n <= 0)
+			throw new IOException("Corrupt Bloom filter.");
+		long[] words = new long[n];
+		for (int w = 0; w < n; w++)
+			words[w] = in.readLong();
+		return new BloomFilter(expectedKeys, count, words);
+	}
+
+	/**
+	 * Loads the filter saved in the given file, and marks the file as no
+	 * longer up to date.
+	 * @return the filter, or null if the file is missing or was not saved
+	 *   since it was last loaded
+	 */
+	static BloomFilter load(File file) throws IOException {
+		if (!file.exists())
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			BloomFilter filter = null;
+			if (raf.length() >= 16 && raf.readInt() == CLEAN) {
+				int expectedKeys = raf.readInt();
+				int count = raf.readInt();
+				int n = raf.readInt();
+				if (n > 0 && raf.length() == 16 + 8L * n) {
+					byte[] bytes = new byte[8 * n];
+					raf.readFully(bytes);
+					long[] words = new long[n];
+					for (int w = 0; w < n; w++)
+						words[w] = KeyHasher.getLong(bytes, 8 * w);
+					filter = new BloomFilter(expectedKeys, count, words);
+				}
+			}
+			raf.seek(0L);
+			raf.writeInt(DIRTY); // a crash leaves the file stale
+			raf.getFD().sync();
+			return filter;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Saves the filter in the given file, to be loaded when the store is
+	 * next opened.
+	 */
+	void save(File file) throws IOException {
+		byte[] bytes = new byte[16 + 8 * words.length];
+		KeyHasher.putLong(bytes, 0, (long) DIRTY << 32 | expectedKeys);
+		KeyHasher.putLong(bytes, 8, (long) count << 32 | words.length);
+		for (int w = 0; w < words.length; w++)
+			KeyHasher.putLong(bytes, 16 + 8 * w, words[w]);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0L);
+			raf.write(bytes);
+			raf.getFD().sync();
+			// only marked clean once completely written
+			raf.seek(0L);
+			raf.writeInt(CLEAN);
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+}
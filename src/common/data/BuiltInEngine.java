@@ -0,0 +1,211 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An engine built into the store, which the processor also maintains,
+ * reads from other threads, logs and copies. The processor adapts any
+ * other {@link StorageEngine} with {@link Adapter}.
+ */
+interface BuiltInEngine extends StorageEngine {
+
+	/** A copy of the engine's files being made by another thread. */
+	static interface Copy {
+		/**
+		 * Copies the files, then forces the copies to the storage device.
+		 * @param bytesPerSecond the rate of the copying thread; 0 for no
+		 *   limit
+		 */
+		void copy(long bytesPerSecond) throws IOException, InterruptedException;
+
+		/** Stops copying, leaving the copy incomplete unless completed. */
+		void abandon();
+	}
+
+	/**
+	 * Looks up the given key from any thread, concurrently with the
+	 * processor thread. The result is only valid if the processor did not
+	 * modify the engine meanwhile, nor had writes pending.
+	 * @return false if the engine cannot be read concurrently
+	 * @see #hasPending()
+	 */
+	boolean lookupConcurrently(String key, boolean readValue, Entry entry)
+	throws IOException;
+
+	/**
+	 * Records the logical operation of a write transaction about to be
+	 * applied, for engines that log them, along with its writes; one that
+	 * writes nothing leaves no record. The operation ends at the next
+	 * {@link #step()}.
+	 */
+	void logOperation(Transaction.Type type, String key, String newKey)
+	throws IOException;
+
+	/** @return true if keys can be scanned by prefix */
+	boolean canScanKeys();
+
+	/** @return true if key scans list every key, not only recent ones */
+	boolean canListKeys();
+
+	/**
+	 * Adds to the given lists up to max values, not longs, in no
+	 * particular order, and for engines that keep their keys in order, the
+	 * keys scanned, the last of which the next batch continues after.
+	 * @param position the position returned by the previous batch, or 0
+	 * @param after the last key of the previous batch, or null; engines
+	 *   that keep their keys in order continue after it
+	 * @return the position to continue from, or -1 after the last value
+	 */
+	long scanValues(long position, String after, int max, List<byte[]> values,
+	List<String> keys) throws IOException;
+
+	/** @return true if writes were applied since the last flush */
+	boolean hasPending();
+
+	/** Does a little maintenance after each transaction. */
+	void step() throws IOException;
+
+	/** Starts maintenance when the processor runs out of transactions. */
+	void idle() throws IOException;
+
+	/**
+	 * Does one step of maintenance while the processor has nothing else to
+	 * do; the processor flushes once it stops.
+	 * @return true if there is more to do
+	 */
+	boolean idleStep() throws IOException;
+
+	/** @return true if {@link #startCopy} is supported */
+	boolean canCopy();
+
+	/**
+	 * Starts a copy of the files as of the last flush into the given
+	 * directory, to be made by another thread while writes go on.
+	 */
+	Copy startCopy(File dir) throws IOException;
+
+	/**
+	 * An engine of another party, which needs no maintenance, is read on
+	 * the processor thread only and cannot be copied. Its values are
+	 * scanned by key.
+	 */
+	static class Adapter implements BuiltInEngine {
+		private final StorageEngine engine;
+		private final Entry entry = new Entry();
+
+		Adapter(StorageEngine engine) {
+			this.engine = engine;
+		}
+
+		/** Clears the entry first, so that no earlier value is taken as read. */
+		@Override
+		public void lookup(String key, boolean readValue, Entry entry)
+		throws IOException {
+			entry.type = Entry.NONE;
+			entry.value = null;
+			engine.lookup(key, readValue, entry);
+		}
+
+		@Override
+		public void put(String key, byte[] value) throws IOException {
+			engine.put(key, value);
+		}
+
+		@Override
+		public boolean putLong(String key, long l) throws IOException {
+			return engine.putLong(key, l);
+		}
+
+		@Override
+		public void remove(String key) throws IOException {
+			engine.remove(key);
+		}
+
+		@Override
+		public boolean move(String key, String newKey) throws IOException {
+			return engine.move(key, newKey);
+		}
+
+		@Override
+		public boolean scanKeys(String prefix, String after, int max,
+		List<String> keys) throws IOException {
+			return engine.scanKeys(prefix, after, max, keys);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			engine.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			engine.close();
+		}
+
+		@Override
+		public boolean lookupConcurrently(String key, boolean readValue,
+		Entry entry) {
+			return false;
+		}
+
+		@Override
+		public void logOperation(Transaction.Type type, String key,
+		String newKey) {
+		}
+
+		@Override
+		public boolean canScanKeys() {
+			return true;
+		}
+
+		@Override
+		public boolean canListKeys() {
+			return true;
+		}
+
+		/** Scans a batch of keys, then looks up each. */
+		@Override
+		public long scanValues(long position, String after, int max,
+		List<byte[]> values, List<String> keys) throws IOException {
+			List<String> batch = new ArrayList<String>();
+			boolean more = engine.scanKeys("", after, max, batch);
+			for (String key : batch) {
+				engine.lookup(key, true, entry);
+				if (entry.type == Entry.VALUE)
+					values.add(entry.value);
+			}
+			keys.addAll(batch);
+			return more ? 0L : -1L;
+		}
+
+		@Override
+		public boolean hasPending() {
+			return false;
+		}
+
+		@Override
+		public void step() {
+		}
+
+		@Override
+		public void idle() {
+		}
+
+		@Override
+		public boolean idleStep() {
+			return false;
+		}
+
+		@Override
+		public boolean canCopy() {
+			return false;
+		}
+
+		@Override
+		public Copy startCopy(File dir) {
+			throw new UnsupportedOperationException("Nothing to copy.");
+		}
+	}
+
+}
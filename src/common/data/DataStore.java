@@ -1,18 +1,54 @@
 package common.data;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
-import java.util.concurrent.locks.*;
 
-class DataStore {
-	private static final String STORE_NAME = ".store";
+/**
+ * Stores values in a file of fixed-size blocks. A value is stored either in
+ * a chain of blocks, each ending with the address of the next, or, if it is
+ * small, in a slot of a slab: a block divided into slots of one size class,
+ * with the free slots of each class chained into a free list. Slots are
+ * reused by values of the same class.
+ * Stores created before slabs were introduced have a shorter header with no
+ * room for the slot free lists, and store all values in chains.
+ *
+ * The blocks of a chain are allocated together, as one contiguous extent
+ * where possible, so that the chain is written and read back in one piece.
+ *
+ * The store can be compacted while it is in use: values stored towards the
+ * end of the file are relocated to the lowest free blocks and slots, after
+ * which slabs with no values left are freed, and the free blocks at the end
+ * of the file are cut off.
+ */
+class DataStore implements WriteAheadLog.Target {
+	static final String STORE_NAME = ".store";
 
 	final int blockSize;
-	private long freeBlock, numBlocks;
-	final RandomAccessFile backingFile;
-	private final Map<Long, Lock> blockLocks;
+	private final int headerSize;
+	private long numBlocks;
+	private final FreeList blockList;
+	private final FreeList[] slotLists; // by size class; null without slabs
+	private long compactedFree; // free bytes the last compaction could not reclaim
+	private final RandomAccessFile backingFile;
+	// positional reads and writes, so that streams share no file pointer
+	private final FileChannel channel;
+	private final PositionalReader reader;
+	private final WriteAheadLog wal; // null unless enabled in the options
+	private final byte[] scratch;
 
-	private static final int HEADER_SIZE = 24;
+	// header size, block size, free list, number of blocks, slot free lists
+	private static final int HEADER_SIZE = 64;
+	// stores created before slabs had a 24-byte header
+	private static final int LEGACY_HEADER_SIZE = 24;
+	// slot sizes are MIN_SLOT_SIZE << class, including a 4-byte length
+	private static final int MIN_SLOT_SIZE = 16;
+	private static final int SIZE_CLASSES = 5;
+	// the slot size of the slab, then reserved
+	private static final int SLAB_HEADER_SIZE = 8;
+	// free blocks searched for a run long enough for an extent
+	private static final int MAX_RUN_SEARCH = 4096;
 
 	/**
 	 * Creates a new DataStore, or restores a previously existed store,
@@ -20,28 +56,319 @@ class DataStore {
 	 * @param blockSize
 	 *   The block szie of the store, if it is created anew.
 	 *   This parameter is ignored if a persisted store already exists.
+	 * @param syncWrites
+	 *   Whether every write goes synchronously to the storage device.
+	 *   If not, changes are only durable after {@link #sync}.
+	 *   Ignored if the store is written through a log.
+	 * @param wal
+	 *   The log that writes to the store file go through, or null to
+	 *   write the file directly.
 	 */
-	DataStore(File backingDir, int blockSize) throws IOException {
-		this.backingFile = new RandomAccessFile(new File(backingDir, STORE_NAME), "rwd");
-		blockLocks = new HashMap<Long, Lock>();
-		if (backingFile.length() == 0) { // initialize new store
+	DataStore(File backingDir, int blockSize, boolean syncWrites,
+	WriteAheadLog wal) throws IOException {
+		this.backingFile = new RandomAccessFile(new File(backingDir, STORE_NAME),
+			syncWrites && wal == null ? "rwd" : "rw");
+		channel = backingFile.getChannel();
+		reader = new PositionalReader(new File(backingDir, STORE_NAME));
+		this.wal = wal;
+		scratch = new byte[HEADER_SIZE];
+		if (wal != null)
+			wal.setTarget(WriteAheadLog.STORE_FILE, this);
+		// a header of zeroes is left by a crash before the new store's
+		// first commit
+		int storedHeaderSize = backingFile.length() < LEGACY_HEADER_SIZE
+			? 0 : readInt(0L);
+		if (storedHeaderSize == LEGACY_HEADER_SIZE
+				|| storedHeaderSize == HEADER_SIZE
+				&& backingFile.length() >= HEADER_SIZE) {
+			// restore from existing
+			headerSize = storedHeaderSize;
+			read(0L, scratch, 0, headerSize);
+			this.blockSize = (int) KeyHasher.getLong(scratch, 0);
+			blockList = new FreeList(KeyHasher.getLong(scratch, 8), this.blockSize);
+			numBlocks = KeyHasher.getLong(scratch, 16);
+			slotLists = headerSize == HEADER_SIZE ? new FreeList[SIZE_CLASSES] : null;
+			for (int c = 0; slotLists != null && c < SIZE_CLASSES; c++)
+				slotLists[c] = new FreeList(KeyHasher.getLong(scratch, 24 + 8 * c), 4);
+		} else {
+			// initialize new store
+			headerSize = HEADER_SIZE;
 			this.blockSize = blockSize;
-			freeBlock = 0L;
+			blockList = new FreeList(0L, blockSize);
+			slotLists = new FreeList[SIZE_CLASSES];
+			for (int c = 0; c < SIZE_CLASSES; c++)
+				slotLists[c] = new FreeList(0L, 4);
+			backingFile.setLength(HEADER_SIZE);
 			writeHeader();
-		} else { // restore from existing
-			backingFile.readInt(); // header size
-			this.blockSize = backingFile.readInt();
-			freeBlock = backingFile.readLong();
-			numBlocks = backingFile.readLong();
 		}
 	}
 
 	private void writeHeader() throws IOException {
-		backingFile.seek(0L);
-		backingFile.writeInt(HEADER_SIZE);
-		backingFile.writeInt(blockSize);
-		backingFile.writeLong(freeBlock); // first free block pointer
-		backingFile.writeLong(numBlocks);
+		KeyHasher.putLong(scratch, 0, (long) headerSize << 32 | blockSize);
+		KeyHasher.putLong(scratch, 8, blockList.head); // first free block pointer
+		KeyHasher.putLong(scratch, 16, numBlocks);
+		for (int c = 0; slotLists != null && c < SIZE_CLASSES; c++)
+			KeyHasher.putLong(scratch, 24 + 8 * c, slotLists[c].head); // first free slot
+		write(0L, scratch, 0, headerSize);
+	}
+
+	/**
+	 * A list of free blocks or free slots, chained through the store file.
+	 * Once loaded for a compaction, the entries are also kept in memory,
+	 * sorted, so that the lowest can be taken and any can be unlinked.
+	 */
+	private class FreeList {
+		long head;
+		private final int linkOffset; // of the address of the next entry
+		// each entry mapped to its predecessor, or to 0L for the head;
+		// null until loaded
+		private TreeMap<Long, Long> pred;
+
+		FreeList(long head, int linkOffset) {
+			this.head = head;
+			this.linkOffset = linkOffset;
+		}
+
+		boolean isEmpty() {
+			return head == 0L;
+		}
+
+		/** @return the lowest entry once loaded, else the head */
+		long first() {
+			return pred != null && !pred.isEmpty() ? pred.firstKey() : head;
+		}
+
+		long take() throws IOException {
+			long entry = first();
+			unlink(entry);
+			return entry;
+		}
+
+		/**
+		 * Removes an entry from the list. Until the list is loaded, only
+		 * the head can be removed.
+		 */
+		void unlink(long entry) throws IOException {
+			long next = readLong(entry + linkOffset);
+			long prev = pred == null ? 0L : pred.remove(entry);
+			if (prev == 0L)
+				head = next;
+			else writeLong(prev + linkOffset, next);
+			if (pred != null && next != 0L)
+				pred.put(next, prev);
+		}
+
+		/**
+		 * Prepends the entries from first to last, which are already linked
+		 * to one another.
+		 */
+		void prepend(long first, long last) throws IOException {
+			if (pred != null) {
+				long prev = 0L;
+				for (long entry = first; prev != last; entry = readLong(entry + linkOffset)) {
+					pred.put(entry, prev);
+					prev = entry;
+				}
+				if (head != 0L)
+					pred.put(head, last);
+			}
+			writeLong(last + linkOffset, head);
+			head = first;
+		}
+
+		void load() throws IOException {
+			if (pred != null)
+				return;
+			pred = new TreeMap<Long, Long>();
+			long prev = 0L;
+			for (long entry = head; entry != 0L; entry = readLong(entry + linkOffset)) {
+				if (pred.put(entry, prev) != null)
+					throw new IOException("Store file corrupted.");
+				prev = entry;
+			}
+		}
+
+		boolean isLoaded() {
+			return pred != null;
+		}
+
+		/** Call only once loaded. */
+		int size() {
+			return pred.size();
+		}
+
+		/** @return the entries in ascending order; call only once loaded */
+		List<Long> entries() {
+			return new ArrayList<Long>(pred.keySet());
+		}
+
+		/**
+		 * @return the lowest of n entries that follow one another at the
+		 *   given stride, or 0L if the lowest entries hold no such run;
+		 *   call only once loaded
+		 */
+		long findRun(int n, int stride) {
+			long run = 0L, prev = 0L;
+			int length = 0, searched = 0;
+			for (long entry : pred.keySet()) {
+				if (++searched > MAX_RUN_SEARCH)
+					break;
+				if (length == 0 || entry != prev + stride) {
+					run = entry;
+					length = 0;
+				}
+				if (++length == n)
+					return run;
+				prev = entry;
+			}
+			return 0L;
+		}
+	}
+
+	/**
+	 * Reads bytes of the store file, including writes not yet committed
+	 * to the log.
+	 */
+	void read(long pos, byte[] bytes, int off, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(bytes, off, len);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos + (buf.position() - off)) < 0)
+				throw new EOFException();
+		}
+		if (wal != null)
+			wal.overlay(WriteAheadLog.STORE_FILE, pos, bytes, off, len);
+	}
+
+	/**
+	 * Writes bytes of the store file, through the log if there is one.
+	 */
+	void write(long pos, byte[] bytes, int off, int len) throws IOException {
+		if (wal != null)
+			wal.write(WriteAheadLog.STORE_FILE, pos, bytes, off, len);
+		else writeFully(pos, bytes, off, len);
+	}
+
+	private void writeFully(long pos, byte[] bytes, int off, int len)
+	throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(bytes, off, len);
+		while (buf.hasRemaining())
+			channel.write(buf, pos + (buf.position() - off));
+	}
+
+	/**
+	 * Reads the value stored from the given block from any thread, seeing
+	 * only the writes that reached the store file. The result is only valid
+	 * if the store was not modified during the call.
+	 * @return the bytes of the value, without its length
+	 */
+	byte[] readConcurrently(long startBlock) throws IOException {
+		if (isSlot(startBlock)) {
+			byte[] block = new byte[blockSize + 8];
+			long slab = slabOf(startBlock);
+			reader.read(slab, block, 0, block.length);
+			int slotSize = (int) (KeyHasher.getLong(block, 0) >> 32);
+			int offset = (int) (startBlock - slab);
+			int length = (int) (KeyHasher.getLong(block, offset) >> 32);
+			if (slotSize < MIN_SLOT_SIZE || offset + slotSize > block.length
+					|| length < 0 || length > slotSize - 4)
+				throw new IOException("Store file corrupted.");
+			return Arrays.copyOfRange(block, offset + 4, offset + 4 + length);
+		}
+		return readChain(startBlock, true);
+	}
+
+	/**
+	 * Reads the value stored in the chain of blocks from the given block,
+	 * reading each contiguous run of the chain at once.
+	 * @param concurrently whether to read through the positional reader,
+	 *   seeing only the writes that reached the store file
+	 * @return the bytes of the value, without its length
+	 */
+	private byte[] readChain(long startBlock, boolean concurrently)
+	throws IOException {
+		long fileSize = concurrently ? reader.size() : backingFile.length();
+		int stride = blockSize + 8;
+		byte[] run = new byte[stride];
+		readRun(startBlock, run, run.length, concurrently);
+		int length = (int) (KeyHasher.getLong(run, 0) >> 32);
+		if (length < 0 || length > fileSize) // torn by a concurrent write
+			throw new IOException("Store file corrupted.");
+		byte[] bytes = new byte[length];
+		int blocks = blocksFor(length) - 1; // left to read
+		int offset = 4, copied = 0, i = 0, runBlocks = 1;
+		long runStart = startBlock;
+		boolean contiguous = true; // whether the chain has kept to one extent
+		while (true) {
+			int n = Math.min(blockSize - offset, length - copied);
+			System.arraycopy(run, i * stride + offset, bytes, copied, n);
+			copied += n;
+			if (copied == length)
+				return bytes;
+			long nextBlock = KeyHasher.getLong(run, i * stride + blockSize);
+			if (nextBlock < headerSize || nextBlock + stride > fileSize)
+				throw new IOException("Store file corrupted.");
+			if (i + 1 < runBlocks && nextBlock == runStart + (long) (i + 1) * stride) {
+				i++;
+			} else {
+				contiguous &= i + 1 == runBlocks;
+				// read the rest of the value as if it followed contiguously,
+				// until the chain is found not to
+				runBlocks = contiguous ? (int) Math.min(blocks,
+					(fileSize - nextBlock) / stride) : 1;
+				if (run.length < runBlocks * stride)
+					run = new byte[runBlocks * stride];
+				readRun(nextBlock, run, runBlocks * stride, concurrently);
+				runStart = nextBlock;
+				i = 0;
+			}
+			blocks--;
+			offset = 0;
+		}
+	}
+
+	private void readRun(long pos, byte[] bytes, int len, boolean concurrently)
+	throws IOException {
+		if (concurrently)
+			reader.read(pos, bytes, 0, len);
+		else read(pos, bytes, 0, len);
+	}
+
+	/**
+	 * @return the number of blocks in the chain of a value of the given
+	 *   length, which is preceded by its 4-byte length
+	 */
+	private int blocksFor(int length) {
+		return (int) Math.max(1L, (4L + length + blockSize - 1) / blockSize);
+	}
+
+	int readInt(long pos) throws IOException {
+		read(pos, scratch, 0, 4);
+		return (int) (KeyHasher.getLong(scratch, 0) >> 32);
+	}
+
+	void writeInt(long pos, int v) throws IOException {
+		KeyHasher.putLong(scratch, 0, (long) v << 32);
+		write(pos, scratch, 0, 4);
+	}
+
+	private long readLong(long pos) throws IOException {
+		read(pos, scratch, 0, 8);
+		return KeyHasher.getLong(scratch, 0);
+	}
+
+	private void writeLong(long pos, long v) throws IOException {
+		KeyHasher.putLong(scratch, 0, v);
+		write(pos, scratch, 0, 8);
+	}
+
+	@Override
+	public void writeThrough(long pos, byte[] bytes) throws IOException {
+		writeFully(pos, bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void syncThrough() throws IOException {
+		sync();
 	}
 
 	/**
@@ -50,77 +377,275 @@ class DataStore {
 	 */
 	long allocNew() throws IOException {
 		long newBlock;
-		if (freeBlock == 0L) {
+		if (blockList.isEmpty()) {
 			// extend file - create new block at end
-			newBlock = nextBlock();
+			newBlock = numBlocks * (blockSize+8) + headerSize;
 			numBlocks++;
+			// new space reads as zeroes, so this need not go through the log
 			backingFile.setLength(newBlock + blockSize + 8);
 		} else {
-			// take a block from the free list
-			backingFile.seek(freeBlock + blockSize);
-			newBlock = freeBlock;
-			freeBlock = backingFile.readLong();
+			// take a block from the free list, the lowest once compacting
+			newBlock = blockList.take();
 		}
-		backingFile.seek(newBlock + blockSize);
-		backingFile.writeLong(0L);
+		writeLong(newBlock + blockSize, 0L);
 		writeHeader();
 		return newBlock;
 	}
 
 	/**
-	 * Returns the block address that would be returned by the next call to
-	 * {@link allocNew}, without actually allocating the block.
+	 * Allocates n contiguous blocks: the lowest run of free blocks that
+	 * long, or new blocks at the end of the file if none are free. Loads
+	 * the free list the first time.
+	 * @return the first block, or 0L if the free blocks hold no such run
 	 */
-	long nextBlock() throws IOException {
-		return freeBlock != 0L ? freeBlock : numBlocks * (blockSize+8) + HEADER_SIZE;
+	private long allocRun(int n) throws IOException {
+		int stride = blockSize + 8;
+		long run;
+		if (blockList.isEmpty()) {
+			run = numBlocks * stride + headerSize;
+			numBlocks += n;
+			backingFile.setLength(run + (long) n * stride);
+		} else {
+			blockList.load();
+			run = blockList.findRun(n, stride);
+			if (run == 0L)
+				return 0L;
+			for (int i = 0; i < n; i++)
+				blockList.unlink(run + (long) i * stride);
+		}
+		writeHeader();
+		return run;
 	}
 
-	void lockBlock(long blocknum, boolean lock) {
-		Lock l;
-		if (blockLocks.containsKey(blocknum)) {
-			l = blockLocks.get(blocknum);
-		} else {
-			l = new ReentrantLock();
-			blockLocks.put(blocknum, l);
+	/**
+	 * Returns whether enough was freed since the last compaction to compact
+	 * the store again. Walks the free lists the first time.
+	 * @param ratio the fraction of the file that must have been freed
+	 */
+	boolean needsCompaction(float ratio) throws IOException {
+		blockList.load();
+		for (int c = 0; slotLists != null && c < SIZE_CLASSES; c++)
+			slotLists[c].load();
+		return freeBytes() - compactedFree > numBlocks * (blockSize+8) * ratio;
+	}
+
+	private long freeBytes() {
+		long bytes = (long) blockList.size() * (blockSize+8);
+		for (int c = 0; slotLists != null && c < SIZE_CLASSES; c++)
+			bytes += (long) slotLists[c].size() * (MIN_SLOT_SIZE << c);
+		return bytes;
+	}
+
+	/**
+	 * @return the end of the blocks that would hold everything stored, if
+	 *   there were no free blocks
+	 */
+	private long liveEnd() {
+		return (numBlocks - blockList.size()) * (blockSize+8) + headerSize;
+	}
+
+	/**
+	 * Returns whether the value stored at the given address should be
+	 * relocated by {@link #relocate}: whether part of it lies beyond the
+	 * blocks needed to hold everything stored, while there is lower space
+	 * to move it to.
+	 * Call only once {@link #needsCompaction} has been called.
+	 */
+	boolean shouldRelocate(long addr) throws IOException {
+		long end = liveEnd();
+		boolean lowBlock = !blockList.isEmpty() && blockList.first() < end;
+		if (isSlot(addr)) {
+			long slab = slabOf(addr);
+			if (slab < end)
+				return false;
+			FreeList list = slotLists[sizeClassOf(slab)];
+			return lowBlock || !list.isEmpty() && list.first() < end;
 		}
-		if (lock)
-			l.lock();
-		else l.unlock();
+		if (!lowBlock)
+			return false;
+		for (long block = addr; block != 0L; block = readLong(block + blockSize)) {
+			if (block >= end)
+				return true;
+		}
+		return false;
 	}
 
 	/**
-	 * Allocates a new block and sets the curBlock's pointer to the new blcok.
+	 * Copies the value stored at the given address to the lowest free space.
+	 * The original is left to be freed once nothing refers to it.
+	 * @return the new address of the value
 	 */
-	long allocNext(long curBlock) throws IOException {
-		long newBlock = allocNew();
-		backingFile.seek(curBlock + blockSize);
-		backingFile.writeLong(newBlock);
-		return newBlock;
+	long relocate(long addr) throws IOException {
+		return write(readValue(addr));
+	}
+
+	/**
+	 * Ends a compaction: frees the slabs whose slots are all free, then cuts
+	 * the free blocks at the end of the file off the free list and the file.
+	 */
+	void truncateFree() throws IOException {
+		for (int c = 0; slotLists != null && c < SIZE_CLASSES; c++) {
+			FreeList list = slotLists[c];
+			int slots = (blockSize + 8 - SLAB_HEADER_SIZE) / (MIN_SLOT_SIZE << c);
+			List<Long> free = list.entries();
+			for (int i = 0, j; i < free.size(); i = j) {
+				long slab = slabOf(free.get(i));
+				j = i + 1;
+				while (j < free.size() && slabOf(free.get(j)) == slab)
+					j++;
+				if (j - i < slots)
+					continue;
+				for (int k = i; k < j; k++)
+					list.unlink(free.get(k));
+				blockList.prepend(slab, slab);
+			}
+		}
+		long lastBlock = (numBlocks - 1) * (blockSize+8) + headerSize;
+		long blocks = numBlocks;
+		while (blocks > 0L && blockList.pred.containsKey(lastBlock)) {
+			blockList.unlink(lastBlock);
+			blocks--;
+			lastBlock -= blockSize + 8;
+		}
+		// until a compaction gains nothing, compact again as soon as needed
+		compactedFree = blocks == numBlocks ? freeBytes() : 0L;
+		numBlocks = blocks;
+		writeHeader();
+		if (backingFile.length() == numBlocks * (blockSize+8) + headerSize)
+			return;
+		if (wal != null)
+			wal.checkpoint(); // no logged write may extend the file again
+		backingFile.setLength(numBlocks * (blockSize+8) + headerSize);
+	}
+
+	/**
+	 * Stores a value in a slot of the smallest size class that fits it, or
+	 * else in a new chain of blocks.
+	 * @return the address of the value
+	 */
+	long write(byte[] bytes) throws IOException {
+		int c = sizeClass(bytes.length);
+		if (c < 0)
+			return writeChain(bytes);
+		long slot = allocSlot(c);
+		byte[] slotBytes = new byte[4 + bytes.length];
+		KeyHasher.putLong(scratch, 0, (long) bytes.length << 32);
+		System.arraycopy(scratch, 0, slotBytes, 0, 4);
+		System.arraycopy(bytes, 0, slotBytes, 4, bytes.length);
+		write(slot, slotBytes, 0, slotBytes.length);
+		return slot;
+	}
+
+	/**
+	 * Stores a value in a chain of blocks, allocated as one extent if
+	 * possible, and writes each contiguous run of the chain at once.
+	 * @return the first block of the chain
+	 */
+	private long writeChain(byte[] bytes) throws IOException {
+		int stride = blockSize + 8;
+		int n = blocksFor(bytes.length);
+		long[] blocks = new long[n];
+		long run = n > 1 ? allocRun(n) : 0L;
+		for (int i = 0; i < n; i++)
+			blocks[i] = run != 0L ? run + (long) i * stride : allocNew();
+		// the length, then the bytes, with the next block after each block
+		byte[] chain = new byte[n * stride];
+		KeyHasher.putLong(scratch, 0, (long) bytes.length << 32);
+		System.arraycopy(scratch, 0, chain, 0, 4);
+		for (int i = 0, copied = 0, offset = 4; i < n; i++, offset = 0) {
+			int len = Math.min(blockSize - offset, bytes.length - copied);
+			System.arraycopy(bytes, copied, chain, i * stride + offset, len);
+			copied += len;
+			if (i + 1 < n)
+				KeyHasher.putLong(chain, i * stride + blockSize, blocks[i + 1]);
+		}
+		for (int i = 0, j; i < n; i = j) {
+			j = i + 1;
+			while (j < n && blocks[j] == blocks[j - 1] + stride)
+				j++;
+			write(blocks[i], chain, i * stride, (j - i) * stride);
+		}
+		return blocks[0];
 	}
 
 	/**
-	 * Returns the next block referenced by curBlock, allocating a new block
-	 * if curBlock does not reference another block.
+	 * Frees the value stored at the given address.
 	 */
-	long getNext(long curBlock) throws IOException {
-		backingFile.seek(curBlock + blockSize);
-		long nextBlock = backingFile.readLong();
-		if (nextBlock == 0L)
-			nextBlock = allocNext(curBlock);
-		return nextBlock;
+	void free(long addr) throws IOException {
+		if (isSlot(addr)) {
+			slotLists[sizeClassOf(slabOf(addr))].prepend(addr, addr);
+			writeHeader();
+		} else freeBlocks(addr);
+	}
+
+	/**
+	 * @return the smallest size class whose slots fit a value of the given
+	 *   length, or -1 if it goes in a chain of blocks
+	 */
+	private int sizeClass(int length) {
+		if (slotLists == null)
+			return -1;
+		for (int c = 0; c < SIZE_CLASSES; c++) {
+			int slotSize = MIN_SLOT_SIZE << c;
+			// a slab of a single slot would save nothing over a block
+			if (2 * slotSize > blockSize + 8 - SLAB_HEADER_SIZE)
+				return -1;
+			if (length + 4 <= slotSize)
+				return c;
+		}
+		return -1;
 	}
 
 	/**
-	 * Frees all blocks referenced by the current block, but not the current block.
-	 * Call this after completing a write that overwrites previous data.
+	 * @return the size class of the slots of the given slab
 	 */
-	void truncate(long curBlock) throws IOException {
-		backingFile.seek(curBlock + blockSize);
-		long nextBlock = backingFile.readLong();
-		if (nextBlock == 0L) return;
-		backingFile.seek(curBlock + blockSize);
-		backingFile.writeLong(0L);
-		freeBlocks(nextBlock);
+	private int sizeClassOf(long slab) throws IOException {
+		int slotSize = readInt(slab);
+		int c = Integer.numberOfTrailingZeros(slotSize / MIN_SLOT_SIZE);
+		if (slotSize < MIN_SLOT_SIZE || c >= SIZE_CLASSES)
+			throw new IOException("Store file corrupted.");
+		return c;
+	}
+
+	/**
+	 * @return true if the address is that of a slot rather than a block;
+	 *   slots never start at a block boundary, which holds the slab header
+	 */
+	private boolean isSlot(long addr) {
+		return slotLists != null && (addr - headerSize) % (blockSize + 8) != 0L;
+	}
+
+	private long slabOf(long slot) {
+		return slot - (slot - headerSize) % (blockSize + 8);
+	}
+
+	/**
+	 * Takes a slot of the given size class from its free list, first
+	 * dividing a new block into a slab of free slots if the list is empty,
+	 * or, once compacting, if its lowest slot lies where a lower free block
+	 * would do.
+	 */
+	private long allocSlot(int c) throws IOException {
+		int slotSize = MIN_SLOT_SIZE << c;
+		FreeList list = slotLists[c];
+		if (list.isEmpty() || list.isLoaded() && list.first() >= liveEnd()
+				&& !blockList.isEmpty() && blockList.first() < liveEnd()) {
+			long slab = allocNew();
+			int slots = (blockSize + 8 - SLAB_HEADER_SIZE) / slotSize;
+			byte[] bytes = new byte[blockSize + 8];
+			KeyHasher.putLong(bytes, 0, (long) slotSize << 32);
+			// free slots are chained through the 8 bytes after their length
+			for (int i = 0; i < slots - 1; i++) {
+				KeyHasher.putLong(bytes, SLAB_HEADER_SIZE + i * slotSize + 4,
+					slab + SLAB_HEADER_SIZE + (i + 1) * slotSize);
+			}
+			write(slab, bytes, 0, bytes.length);
+			list.prepend(slab + SLAB_HEADER_SIZE,
+				slab + SLAB_HEADER_SIZE + (slots - 1) * slotSize);
+		}
+		long slot = list.take();
+		writeHeader();
+		return slot;
 	}
 
 	/**
@@ -131,25 +656,39 @@ class DataStore {
 		long nextBlock = blockptr;
 		do { // seek to the end of this block chain
 			curBlock = nextBlock;
-			backingFile.seek(curBlock + blockSize);
-			nextBlock = backingFile.readLong();
+			nextBlock = readLong(curBlock + blockSize);
 		} while (nextBlock != 0L);
-		// prepend the chain to the free list
-		backingFile.seek(curBlock + blockSize);
-		backingFile.writeLong(freeBlock);
-		freeBlock = blockptr;
+		blockList.prepend(blockptr, curBlock);
 		writeHeader();
 	}
 
-	InputStream getInputStream(long blocknum) throws IOException {
-		return new DataStoreInputStream(this, blocknum);
+	/**
+	 * @return the bytes of the value stored at the given address, without
+	 *   its length
+	 */
+	byte[] readValue(long addr) throws IOException {
+		if (isSlot(addr)) {
+			int length = readInt(addr);
+			if (length < 0 || length > blockSize)
+				throw new IOException("Store file corrupted.");
+			byte[] bytes = new byte[length];
+			read(addr + 4, bytes, 0, bytes.length);
+			return bytes;
+		}
+		return readChain(addr, false);
 	}
 
-	OutputStream getOutputStream(long blocknum) {
-		return new DataStoreOutputStream(this, blocknum);
+	/**
+	 * Forces all changes to the store file to the storage device.
+	 */
+	void sync() throws IOException {
+		channel.force(true);
 	}
 
 	void close() throws IOException {
+		if (wal != null)
+			wal.setTarget(WriteAheadLog.STORE_FILE, null);
+		reader.close();
 		backingFile.close();
 	}
 
@@ -0,0 +1,303 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The engine of a store's hash index and data file: small values are
+ * inlined in the index, others are written in place into blocks of the
+ * data file, and the index maps keys to their addresses. Optionally keeps
+ * a key log to list keys, and writes through a write-ahead log. Freed
+ * space is reused in place, and compacted in idle time.
+ */
+class HashEngine implements BuiltInEngine {
+
+	private final HashIndex index;
+	private final DataStore store;
+	private final KeyLog keyLog; // null unless enabled in the options
+	private final WriteAheadLog wal; // null unless enabled in the options
+	private final boolean groupCommit;
+	private final float compactionRatio;
+	private long compactCursor = -1L; // next index row to compact, or -1
+
+	HashEngine(File backingDir, int blockSize, int initCapacity,
+	StoreOptions options) throws IOException {
+		groupCommit = options.groupCommit;
+		compactionRatio = options.compactionRatio;
+		// recovers the index and store files, so must be opened first
+		wal = options.writeAheadLog
+			? new WriteAheadLog(backingDir, options.checkpointBytes) : null;
+		index = new HashIndex(backingDir, initCapacity, options, wal);
+		// with group commit, durability comes from one sync per batch
+		store = new DataStore(backingDir, blockSize, !groupCommit, wal);
+		keyLog = options.keyLog ? new KeyLog(backingDir, index.isEmpty()) : null;
+	}
+
+	@Override
+	public void lookup(String key, boolean readValue, Entry entry)
+	throws IOException {
+		long val = index.lookup(key);
+		entry.value = null;
+		switch (index.lastType()) {
+		case HashIndex.EMPTY:
+			entry.type = Entry.NONE;
+			break;
+		case HashIndex.LONG:
+			entry.type = Entry.LONG;
+			entry.l = val;
+			break;
+		case HashIndex.INLINE:
+			entry.type = Entry.VALUE;
+			if (readValue)
+				entry.value = HashIndex.unpackInline(val);
+			break;
+		default:
+			entry.type = val == 0L ? Entry.NONE : Entry.VALUE;
+			if (readValue && val != 0L)
+				entry.value = store.readValue(val);
+		}
+	}
+
+	@Override
+	public boolean lookupConcurrently(String key, boolean readValue,
+	Entry entry) throws IOException {
+		byte[] row = new byte[HashIndex.ROW_SIZE];
+		index.lookupConcurrently(key, row);
+		long val = KeyHasher.getLong(row, 17);
+		entry.value = null;
+		switch (row[0]) {
+		case HashIndex.EMPTY:
+			entry.type = Entry.NONE;
+			break;
+		case HashIndex.LONG:
+			entry.type = Entry.LONG;
+			entry.l = val;
+			break;
+		case HashIndex.INLINE:
+			entry.type = Entry.VALUE;
+			if (readValue)
+				entry.value = HashIndex.unpackInline(val);
+			break;
+		default:
+			entry.type = val == 0L ? Entry.NONE : Entry.VALUE;
+			if (readValue && val != 0L)
+				entry.value = store.readConcurrently(val);
+		}
+		return true;
+	}
+
+	@Override
+	public void logOperation(Transaction.Type type, String key, String newKey)
+	throws IOException {
+		if (wal != null)
+			wal.operation(type, key, newKey);
+	}
+
+	/**
+	 * Maps the key to the given value, inlined in the index if it is small
+	 * enough.
+	 */
+	@Override
+	public void put(String key, byte[] value) throws IOException {
+		long oldAddr;
+		if (value.length <= HashIndex.INLINE_MAX) {
+			oldAddr = index.put(key, HashIndex.INLINE,
+				HashIndex.packInline(value));
+		} else {
+			long addr = store.write(value);
+			try {
+				oldAddr = index.put(key, HashIndex.ADDR, addr);
+			} catch (IOException e) {
+				store.free(addr);
+				throw e;
+			}
+		}
+		if (oldAddr != 0L) // the value is written anew, not overwritten
+			store.free(oldAddr);
+		logKey(key);
+	}
+
+	@Override
+	public boolean putLong(String key, long l) throws IOException {
+		if (!index.putLong(key, l))
+			return false;
+		logKey(key);
+		return true;
+	}
+
+	@Override
+	public void remove(String key) throws IOException {
+		long addr = index.delete(key);
+		if (addr != 0L)
+			store.free(addr);
+		if (keyLog != null)
+			keyLog.remove(key);
+	}
+
+	@Override
+	public boolean move(String key, String newKey) throws IOException {
+		long val = index.lookup(key);
+		int type = index.lastType();
+		if (type == HashIndex.EMPTY || !index.insert(newKey, type, val))
+			return false;
+		index.delete(key);
+		if (keyLog != null) {
+			keyLog.remove(key);
+			logKey(newKey);
+		}
+		return true;
+	}
+
+	/** Adds the key to the key log, if any, unless it is the store's own. */
+	private void logKey(String key) throws IOException {
+		if (keyLog != null && !key.startsWith(TransactionProcessor.VERSION_PREFIX))
+			keyLog.add(key);
+	}
+
+	@Override
+	public boolean canScanKeys() {
+		return keyLog != null;
+	}
+
+	@Override
+	public boolean canListKeys() {
+		return keyLog != null && keyLog.isComplete();
+	}
+
+	@Override
+	public boolean scanKeys(String prefix, String after, int max,
+	List<String> keys) {
+		return keyLog.scan(prefix, after, max, keys);
+	}
+
+	@Override
+	public long scanValues(long position, String after, int max,
+	List<byte[]> values, List<String> keys) throws IOException {
+		List<Long> addrs = new ArrayList<Long>();
+		List<byte[]> inlined = new ArrayList<byte[]>();
+		position = index.scan(position, max, addrs, inlined);
+		for (long addr : addrs)
+			values.add(store.readValue(addr));
+		values.addAll(inlined);
+		return position;
+	}
+
+	@Override
+	public boolean hasPending() {
+		return wal != null && wal.hasPending();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (wal != null) {
+			wal.commit();
+		} else if (groupCommit) {
+			store.sync();
+			index.sync();
+		}
+	}
+
+	/**
+	 * Ends the logged operation of the transaction, then processes one
+	 * rehash; its writes join the commit.
+	 */
+	@Override
+	public void step() throws IOException {
+		if (wal != null)
+			wal.endOperation();
+		index.rehashOne();
+	}
+
+	@Override
+	public void idle() throws IOException {
+		index.idle();
+	}
+
+	/**
+	 * Rehashes until the rehash is complete, then compacts the data file.
+	 */
+	@Override
+	public boolean idleStep() throws IOException {
+		return index.rehashOne() || compactOne();
+	}
+
+	/**
+	 * Does one step of compacting the store, if enough of it was freed:
+	 * relocates the value of one index row out of the end of the data file
+	 * if needed, or after the last row, truncates the file.
+	 * @return true if the compaction is not complete
+	 */
+	private boolean compactOne() {
+		if (compactionRatio <= 0f)
+			return false;
+		try {
+			if (compactCursor < 0L) {
+				if (!store.needsCompaction(compactionRatio))
+					return false;
+				compactCursor = 0L;
+			}
+			if (compactCursor >= index.rows()) {
+				compactCursor = -1L;
+				store.truncateFree();
+				return true; // another pass may be needed already
+			}
+			long addr = index.addrAt(compactCursor);
+			if (addr != 0L && store.shouldRelocate(addr)) {
+				index.setAddrAt(compactCursor, store.relocate(addr));
+				store.free(addr);
+				if (wal != null)
+					wal.commit(); // a value at a time, not the whole pass
+			}
+			compactCursor++;
+			return true;
+		} catch (IOException e) {
+			compactCursor = -1L;
+			return false; // restarted on a later idle pass
+		}
+	}
+
+	@Override
+	public boolean canCopy() {
+		return wal != null;
+	}
+
+	/**
+	 * The files are as of the last commit; later writes are copied to the
+	 * snapshot before they reach the files.
+	 */
+	@Override
+	public Copy startCopy(final File dir) throws IOException {
+		final Snapshot snapshot = wal.startSnapshot(dir);
+		final List<String> keys = keyLog == null ? null : keyLog.copyKeys();
+		return new Copy() {
+			@Override public void copy(long bytesPerSecond)
+			throws IOException, InterruptedException {
+				snapshot.copy(bytesPerSecond);
+				if (keys != null)
+					keyLog.copyTo(dir, keys);
+			}
+
+			@Override public void abandon() {
+				snapshot.abandon();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (wal != null) {
+			try {
+				wal.close(); // checkpoints into the index and store files
+			} catch (IOException ignore) { } // replayed when next opened
+		}
+		try {
+			index.close();
+		} catch (IOException ignore) { }
+		try {
+			store.close();
+		} catch (IOException ignore) { }
+		if (keyLog != null)
+			keyLog.close();
+	}
+
+}
@@ -2,96 +2,443 @@ package common.data;
 
 import java.io.*;
 import java.math.*;
-import java.security.*;
 import java.util.*;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 class HashIndex {
-	private static final String INDEX_ONE_FILE = ".index.1";
-	private static final String INDEX_TWO_FILE = ".index.2";
+	static final String INDEX_ONE_FILE = ".index.1";
+	static final String INDEX_TWO_FILE = ".index.2";
+	private static final String MIGRATION_FILE = ".index.tmp";
+	private static final String BLOOM_FILE = ".bloom";
 
-	private static final byte EMPTY = 0;
-	private static final byte ADDR = 1;
-	private static final byte LONG = 2;
+	static final byte EMPTY = 0;
+	static final byte ADDR = 1;
+	static final byte LONG = 2;
+	// a deleted row, or in index1 a row already rehashed into index2
+	private static final byte TOMBSTONE = 3;
+	// a value of up to INLINE_MAX bytes, stored in the row itself
+	static final byte INLINE = 4;
+	static final int INLINE_MAX = 7;
 
 	private static final float MAX_LOAD_FACTOR = 0.7f;
+	// fraction of index2 rows that may be tombstones before it is compacted
+	private static final float MAX_TOMBSTONE_FACTOR = 0.25f;
+	// index1 rows rehashed per insertion while the table is split; enough
+	// to drain index1 before index2 fills, whatever started the split
+	private static final int REHASH_ROWS = 8;
 
 	// 16-byte hash + 1 byte type + 8-byte ptr
-	private static final int ROW_SIZE = 25;
-	private static final int HEADER_SIZE = 12;
+	static final int ROW_SIZE = 25;
+	// header size, size, capacity, format version, tombstones;
+	// the rest is reserved
+	private static final int HEADER_SIZE = 32;
+	// indexes slotted by BigInteger modulo had a 12-byte header
+	private static final int LEGACY_HEADER_SIZE = 12;
+	// version 1 did not count LONG rows in the size nor track tombstones
+	private static final int FORMAT_VERSION = 2;
+	// the fewest keys a Bloom filter is sized for
+	private static final int MIN_BLOOM_KEYS = 1024;
+
+	// hashes keys for lookups on threads other than the processor's
+	private static final ThreadLocal<KeyHasher> concurrentHasher =
+		new ThreadLocal<KeyHasher>() {
+			@Override protected KeyHasher initialValue() {
+				return new KeyHasher();
+			}
+		};
 
 	private final File backingDir;
-	private RandomAccessFile index1, index2;
+	private final boolean mapped;
+	private final StoreOptions.IndexSync syncPolicy;
+	private final WriteAheadLog wal; // null unless enabled in the options
+	// volatile for lookupConcurrently; only the processor thread writes them
+	private volatile IndexFile index1, index2;
+	private volatile int capacity1, capacity2; // always powers of two
 	private int size1, size2;
-	private int capacity1, capacity2;
-	private final byte[] hashBuf;
-	private final MessageDigest sha256hasher;
+	private int tombstones2; // tombstones in index2
+	private final KeyHasher hasher;
+	private final byte[] probeBuf; // type and hash of the last probed row
+	private long tombstoneBlock; // first tombstone seen by the last probe, or -1
+	private final byte[] rowBuf;
+	private long rehashCursor; // offset of the next index1 row to rehash
+	private boolean dirty; // modified since the last sync
+	// of the keys of every live row, and maybe of deleted ones; null unless
+	// enabled in the options; volatile for lookupConcurrently
+	private volatile BloomFilter bloom;
 
 	/**
 	 * Creates a new HashIndex, or restores a previously persisted index,
 	 * from the given backing directory.
 	 * @param initCapacity
-	 *   The initial capacity of the index, if it is created anew.
+	 *   The initial capacity of the index, if it is created anew, rounded up
+	 *   to a power of two.
 	 *   This parameter is ignored if a persisted index already exists.
+	 * @param options
+	 *   Selects memory-mapped or file-based access and the sync policy.
+	 * @param wal
+	 *   The log that writes to the index files go through, or null to
+	 *   write the files directly.
 	 */
-	HashIndex(File backingDir, int initCapacity) throws IOException {
+	HashIndex(File backingDir, int initCapacity, StoreOptions options,
+	WriteAheadLog wal) throws IOException {
 		this.backingDir = backingDir;
+		this.mapped = options.mappedIndex;
+		this.syncPolicy = options.indexSync;
+		this.wal = wal;
+		hasher = new KeyHasher();
+		probeBuf = new byte[17];
+		rowBuf = new byte[ROW_SIZE];
+
 		File index1file = new File(backingDir, INDEX_ONE_FILE);
 		File index2file = new File(backingDir, INDEX_TWO_FILE);
-		index2 = new RandomAccessFile(index2file, "rw");
-		if (index2.length() > 0) {
-			index2.readInt(); // header size
-			size2 = index2.readInt();
-			capacity2 = index2.readInt();
-			if (index1file.exists()) {
-				index1 = new RandomAccessFile(index1file, "rw");
-				index1.readInt(); // header size
-				size1 = index1.readInt();
-				capacity1 = index1.readInt();
-			}
+		if (isLegacy(index1file) || isLegacy(index2file))
+			migrateLegacy(index1file, index2file);
+		if (index1file.exists()) {
+			index1 = open(index1file, WriteAheadLog.INDEX_ONE_FILE);
+			upgrade(index1);
+			size1 = index1.readInt(4L);
+			capacity1 = index1.readInt(8L);
+			rehashCursor = HEADER_SIZE;
+		}
+		index2 = open(index2file, WriteAheadLog.INDEX_TWO_FILE);
+		if (index2.length() > 0 && index2.readInt(0L) == HEADER_SIZE) {
+			upgrade(index2);
+			size2 = index2.readInt(4L);
+			capacity2 = index2.readInt(8L);
+			tombstones2 = index2.readInt(16L);
 		} else {
-			capacity2 = initCapacity;
-			index2.setLength(HEADER_SIZE + capacity2 * ROW_SIZE);
-			writeHeader(index2, size2, capacity2);
+			// a new index, or a split interrupted before index2 was created
+			capacity2 = index1 != null ? capacity1 * 2 : powerOfTwo(initCapacity);
+			index2.setLength(HEADER_SIZE + (long)capacity2 * ROW_SIZE);
+			writeHeader(index2, size2, capacity2, tombstones2);
 		}
-		MessageDigest md = null;
+		if (options.bloomFilter) {
+			bloom = BloomFilter.load(new File(backingDir, BLOOM_FILE));
+			if (bloom == null)
+				rebuildBloom();
+		}
+	}
+
+	/**
+	 * Replaces the Bloom filter with one built from the rows of both index
+	 * files, sized for twice as many keys.
+	 */
+	private void rebuildBloom() throws IOException {
+		BloomFilter filter = new BloomFilter(
+			Math.max(2 * (size1 + size2), MIN_BLOOM_KEYS));
+		addRows(index1, filter);
+		addRows(index2, filter);
+		bloom = filter;
+	}
+
+	private static void addRows(IndexFile index, BloomFilter filter)
+	throws IOException {
+		if (index == null)
+			return;
+		byte[] rows = new byte[1024 * ROW_SIZE];
+		long end = index.length();
+		for (long pos = HEADER_SIZE; pos + ROW_SIZE <= end; pos += rows.length) {
+			if (end - pos < rows.length)
+				rows = new byte[(int) ((end - pos) / ROW_SIZE) * ROW_SIZE];
+			index.read(pos, rows);
+			for (int row = 0; row < rows.length; row += ROW_SIZE) {
+				if (isLive(rows[row])) {
+					filter.add(KeyHasher.getLong(rows, row + 1),
+						KeyHasher.getLong(rows, row + 9));
+				}
+			}
+		}
+	}
+
+	private IndexFile open(File file, int fileId) throws IOException {
+		IndexFile index = IndexFile.open(file, mapped);
+		return wal == null ? index : new JournaledIndexFile(index, wal, fileId);
+	}
+
+	private static int powerOfTwo(int n) {
+		return Integer.highestOneBit(Math.max(n, 2) - 1) << 1;
+	}
+
+	private static boolean isLegacy(File indexFile) throws IOException {
+		if (indexFile.length() < 4)
+			return false;
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
 		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException impossible) { }
-		sha256hasher = md;
-		hashBuf = new byte[16];
+			return file.readInt() == LEGACY_HEADER_SIZE;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Rebuilds an index written before capacities were powers of two and
+	 * rows were slotted by the low bits of their hash. The rows themselves
+	 * are unchanged, so the live rows of both index files are copied into a
+	 * new index2, which then replaces the old files. Rows that the old
+	 * lookups could no longer reach, which its deletions cut off from
+	 * their probe sequences, are dropped rather than brought back.
+	 */
+	private void migrateLegacy(File index1file, File index2file)
+	throws IOException {
+		IndexFile old2 = IndexFile.open(index2file, false);
+		IndexFile old1 = index1file.exists() ? IndexFile.open(index1file, false) : null;
+		int rows = copyRows(old2, null, 0) + copyRows(old1, null, 0);
+		int capacity = powerOfTwo(Math.max(old2.readInt(8L), 2));
+		while ((float)rows / capacity > MAX_LOAD_FACTOR)
+			capacity *= 2;
+
+		File migrationFile = new File(backingDir, MIGRATION_FILE);
+		migrationFile.delete(); // left over from an interrupted migration
+		IndexFile migrated = IndexFile.open(migrationFile, false);
+		migrated.setLength(HEADER_SIZE + (long)capacity * ROW_SIZE);
+		// rows of index2 shadow those of index1
+		rows = copyRows(old2, migrated, capacity) + copyRows(old1, migrated, capacity);
+		writeHeader(migrated, rows, capacity, 0);
+		migrated.sync();
+		migrated.close();
+		old2.close();
+		if (old1 != null)
+			old1.close();
+
+		if (!migrationFile.renameTo(index2file)) {
+			index2file.delete();
+			if (!migrationFile.renameTo(index2file))
+				throw new IOException("Could not replace " + INDEX_TWO_FILE);
+		}
+		if (index1file.exists() && !index1file.delete())
+			throw new IOException("Could not delete " + INDEX_ONE_FILE);
 	}
 
 	/**
-	 * Returns the row address where the given key is located,
-	 * or where it would be inserted if it is not found.
-	 * Also seeks to that address in the index file.
+	 * Recounts the live rows and tombstones of an index file written by
+	 * an earlier format version.
 	 */
-	private long probe(byte[] hash, RandomAccessFile index, int capacity)
+	private void upgrade(IndexFile index) throws IOException {
+		if (index.readInt(12L) >= FORMAT_VERSION)
+			return;
+		int size = 0, tombstones = 0;
+		long end = index.length();
+		for (long pos = HEADER_SIZE; pos + ROW_SIZE <= end; pos += ROW_SIZE) {
+			int type = index.read(pos);
+			if (isLive(type))
+				size++;
+			else if (type == TOMBSTONE)
+				tombstones++;
+		}
+		writeHeader(index, size, index.readInt(8L), tombstones);
+	}
+
+	/**
+	 * Copies the live rows of one index file into another, except the rows
+	 * of a legacy file that its lookups could not reach.
+	 * @param to the destination, or null to only count the live rows
+	 * @return the number of rows copied
+	 */
+	private int copyRows(IndexFile from, IndexFile to, int capacity)
 	throws IOException {
-		long idx = mod(hash, capacity) * ROW_SIZE + HEADER_SIZE;
-		for (;;) {
-			index.seek(idx);
-			if (index.read() == EMPTY)
-				break;
-			index.read(hashBuf);
-			if (Arrays.equals(hash, hashBuf)) {
-				break; // address of row
-			} else {
-				idx += ROW_SIZE; // skip to next row
+		if (from == null)
+			return 0;
+		int copied = 0;
+		long end = from.length();
+		int headerSize = from.readInt(0L);
+		for (long pos = headerSize; pos + ROW_SIZE <= end; pos += ROW_SIZE) {
+			from.read(pos, rowBuf);
+			int type = rowBuf[0];
+			if (!isLive(type))
+				continue;
+			if (headerSize == LEGACY_HEADER_SIZE && !legacyReachable(from, pos))
+				continue; // deleted in effect, though its row was left live
+			if (to != null) {
+				long hi = KeyHasher.getLong(rowBuf, 1);
+				long lo = KeyHasher.getLong(rowBuf, 9);
+				long val = KeyHasher.getLong(rowBuf, 17);
+				long block = probe(hi, lo, to, capacity);
+				if (probeBuf[0] != EMPTY)
+					continue; // already copied
+				writeRow(to, block, type, hi, lo, val);
 			}
+			copied++;
 		}
-		index.seek(idx);
-		return idx;
+		return copied;
 	}
 
-	private void writeHeader(RandomAccessFile index, int size, int capacity)
+	/**
+	 * Probes a legacy index file for the hash of the row at the given
+	 * position as its lookups did: from the row given by the hash modulo
+	 * the capacity, without wrapping around, up to the first empty row.
+	 * @return true if the probe ends at the given row
+	 */
+	private static boolean legacyReachable(IndexFile index, long pos)
 	throws IOException {
-		index.seek(0L);
-		index.writeInt(HEADER_SIZE);
-		index.writeInt(size);
-		index.writeInt(capacity);
+		byte[] hash = new byte[16];
+		byte[] row = new byte[17];
+		index.read(pos + 1, hash);
+		long capacity = index.readInt(8L);
+		long idx = new BigInteger(hash).mod(BigInteger.valueOf(capacity))
+			.longValue() * ROW_SIZE + LEGACY_HEADER_SIZE;
+		for (long end = index.length(); idx + ROW_SIZE <= end; idx += ROW_SIZE) {
+			index.read(idx, row);
+			if (row[0] == EMPTY)
+				return false;
+			if (Arrays.equals(hash, Arrays.copyOfRange(row, 1, 17)))
+				return idx == pos;
+		}
+		return false;
+	}
+
+	private static boolean isLive(int type) {
+		return type == ADDR || type == LONG || type == INLINE;
+	}
+
+	/**
+	 * Packs a value of at most {@link #INLINE_MAX} bytes into the value of
+	 * an INLINE row: its length in the first byte, then the value.
+	 */
+	static long packInline(byte[] bytes) {
+		long val = (long) bytes.length << 56;
+		for (int i = 0; i < bytes.length; i++)
+			val |= (bytes[i] & 0xffL) << (48 - 8 * i);
+		return val;
+	}
+
+	static byte[] unpackInline(long val) {
+		byte[] bytes = new byte[Math.min((int) (val >>> 56), INLINE_MAX)];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (val >>> (48 - 8 * i));
+		return bytes;
+	}
+
+	/**
+	 * Returns the row address where the hash given by its two halves is
+	 * located, or the address of the empty row ending its probe sequence if
+	 * it is not found. Tombstones never match, but the first one passed is
+	 * remembered in {@code tombstoneBlock} so that insertions can reuse it.
+	 * The type and hash of the returned row are left in {@code probeBuf}.
+	 */
+	private long probe(long hi, long lo, IndexFile index, int capacity)
+	throws IOException {
+		int mask = capacity - 1;
+		long row = lo & mask;
+		tombstoneBlock = -1L;
+		for (int probed = 0; ; probed++) {
+			if (probed == capacity)
+				throw new IOException("Index full.");
+			long idx = row * ROW_SIZE + HEADER_SIZE;
+			index.read(idx, probeBuf);
+			if (probeBuf[0] == EMPTY)
+				return idx;
+			if (probeBuf[0] == TOMBSTONE) {
+				if (tombstoneBlock < 0L)
+					tombstoneBlock = idx;
+			} else if (KeyHasher.getLong(probeBuf, 1) == hi
+					&& KeyHasher.getLong(probeBuf, 9) == lo) {
+				return idx; // address of row
+			}
+			row = (row + 1) & mask; // skip to next row, wrapping around
+		}
+	}
+
+	/**
+	 * Stores a new row in index2, where the last probe of index2 found the
+	 * key missing. Reuses the first tombstone on the probe path, if any.
+	 */
+	private void insert2(long block, int type, long hi, long lo, long val)
+	throws IOException {
+		if (tombstoneBlock >= 0L) {
+			block = tombstoneBlock;
+			tombstones2--;
+		}
+		if (bloom != null)
+			bloom.add(hi, lo);
+		writeRow(index2, block, type, hi, lo, val);
+		size2++;
+		writeCounts(index2, size2, tombstones2);
+	}
+
+	/**
+	 * Makes room for one more row in index2. While the table is split,
+	 * rehashes the next {@link #REHASH_ROWS} rows of index1, so that each
+	 * insertion pays a bounded share of the split. Rehashes into a new
+	 * index2 if the row would push the index2 load factor, counting
+	 * tombstones and the index1 rows still to be rehashed, past the
+	 * maximum. A split leaves room in index2 for at least a quarter of its
+	 * capacity in insertions, during which all of index1 is rehashed, so
+	 * no split starts before the previous one is drained.
+	 * @return true if index2 was modified and must be probed again
+	 */
+	private boolean reserveRow() throws IOException {
+		boolean rehashed = index1 != null;
+		if (rehashed)
+			rehashRows(REHASH_ROWS);
+		if ((float)(size1 + size2 + tombstones2 + 1) / capacity2 <= MAX_LOAD_FACTOR)
+			return rehashed;
+		if (index1 != null) // not while rehashing at REHASH_ROWS per insertion
+			rehashRows(Integer.MAX_VALUE);
+		if ((float)(size2 + tombstones2 + 1) / capacity2 <= MAX_LOAD_FACTOR)
+			return true; // the rehash was a compaction that made enough room
+		if ((float)(size2 + 1) / capacity2 > MAX_LOAD_FACTOR / 2)
+			move2to1(capacity2 * 2); // start a new doubling
+		else
+			move2to1(capacity2); // mostly tombstones - compact
+		return true;
+	}
+
+	private void writeRow(IndexFile index, long block, int type, long hi,
+	long lo, long val) throws IOException {
+		rowBuf[0] = (byte) type;
+		KeyHasher.putLong(rowBuf, 1, hi);
+		KeyHasher.putLong(rowBuf, 9, lo);
+		KeyHasher.putLong(rowBuf, 17, val);
+		index.write(block, rowBuf);
+	}
+
+	private void writeHeader(IndexFile index, int size, int capacity,
+	int tombstones) throws IOException {
+		index.writeInt(0L, HEADER_SIZE);
+		index.writeInt(4L, size);
+		index.writeInt(8L, capacity);
+		index.writeInt(12L, FORMAT_VERSION);
+		index.writeInt(16L, tombstones);
+		dirty = true;
+	}
+
+	private void writeSize(IndexFile index, int size) throws IOException {
+		index.writeInt(4L, size);
+	}
+
+	private void writeCounts(IndexFile index, int size, int tombstones)
+	throws IOException {
+		index.writeInt(4L, size);
+		index.writeInt(16L, tombstones);
+	}
+
+	/**
+	 * Called after each operation that modified the index.
+	 */
+	private void modified() throws IOException {
+		dirty = true;
+		if (syncPolicy == StoreOptions.IndexSync.EVERY_WRITE)
+			sync();
+	}
+
+	/**
+	 * Called when the store has no pending transactions.
+	 */
+	void idle() throws IOException {
+		if (syncPolicy == StoreOptions.IndexSync.ON_IDLE)
+			sync();
+		if (bloom != null && bloom.isFull())
+			rebuildBloom();
+	}
+
+	/**
+	 * Forces all changes to the index files to disk.
+	 */
+	void sync() throws IOException {
+		if (!dirty) return;
+		index2.sync();
+		if (index1 != null)
+			index1.sync();
+		dirty = false;
 	}
 
 	/**
@@ -100,26 +447,37 @@ class HashIndex {
 	 * @return the address/long, or 0L if key is not mapped.
 	 */
 	long lookup(String key, boolean throwEx) throws IOException {
-		byte[] hash = hash(key);
-		long block = probe(hash, index2, capacity2);
-		if (index2.read() == EMPTY) { // not found in index2 - check index
+		hasher.hash(key);
+		if (bloom != null && !bloom.mightContain(hasher.hi, hasher.lo)) {
+			probeBuf[0] = EMPTY;
+			if (throwEx) throw new IOException("Not found.");
+			return 0L;
+		}
+		long block = probe(hasher.hi, hasher.lo, index2, capacity2);
+		if (probeBuf[0] == EMPTY) { // not found in index2 - check index1
 			if (index1 == null) {
 				if (throwEx) throw new IOException("Not found.");
 				else return 0L;
 			}
-			block = probe(hash, index1, capacity1);
-			if (index1.read() == EMPTY) {
+			block = probe(hasher.hi, hasher.lo, index1, capacity1);
+			if (probeBuf[0] == EMPTY) {
 				if (throwEx) throw new IOException("Not found.");
 				return 0L; // not found in either
 			}
-			index1.seek(block + 17); // skip hash and type
-			return index1.readLong();
+			return index1.readLong(block + 17); // skip hash and type
 		} else {
-			index2.seek(block + 17); // skip hash and type
-			return index2.readLong();
+			return index2.readLong(block + 17); // skip hash and type
 		}
 	}
 
+	/**
+	 * @return the type of the row found by the last lookup, or
+	 *   {@link #EMPTY} if the key was not mapped
+	 */
+	int lastType() {
+		return probeBuf[0];
+	}
+
 	/**
 	 * Equivalent to lookup(key, false).
      * @see #lookup(String, boolean)
@@ -129,136 +487,355 @@ class HashIndex {
 	}
 
 	/**
-	 * Deletes the mapping associated with the given key, if any.
+	 * Looks up the row of the given key from any thread, reading the index
+	 * files concurrently with the processor thread. The result is only
+	 * valid if the index was not modified during the call.
+	 * @param row receives the row of the key, whose type is
+	 *   {@link #EMPTY} if the key is not mapped
+	 */
+	void lookupConcurrently(String key, byte[] row) throws IOException {
+		KeyHasher hasher = concurrentHasher.get();
+		hasher.hash(key);
+		BloomFilter bloom = this.bloom;
+		if (bloom != null && !bloom.mightContain(hasher.hi, hasher.lo)) {
+			row[0] = EMPTY;
+			return;
+		}
+		IndexFile index = index2;
+		int capacity = capacity2;
+		if (probeConcurrently(hasher.hi, hasher.lo, index, capacity, row))
+			return;
+		index = index1;
+		capacity = capacity1;
+		if (index != null)
+			probeConcurrently(hasher.hi, hasher.lo, index, capacity, row);
+	}
+
+	/**
+	 * Probes like {@link #probe}, leaving the row found or the empty row
+	 * ending the probe sequence in the given buffer.
+	 * @return true if the hash was found
+	 */
+	private static boolean probeConcurrently(long hi, long lo, IndexFile index,
+	int capacity, byte[] row) throws IOException {
+		int mask = capacity - 1;
+		long r = lo & mask;
+		for (int probed = 0; probed < capacity; probed++) {
+			index.readConcurrently(r * ROW_SIZE + HEADER_SIZE, row);
+			if (row[0] == EMPTY)
+				return false;
+			if (row[0] != TOMBSTONE && KeyHasher.getLong(row, 1) == hi
+					&& KeyHasher.getLong(row, 9) == lo)
+				return true;
+			r = (r + 1) & mask;
+		}
+		row[0] = EMPTY; // index full, or torn by a concurrent write
+		return false;
+	}
+
+	/**
+	 * Deletes the mapping associated with the given key, if any,
+	 * leaving a tombstone in its row so that probe sequences stay intact.
 	 * @return The address previously mapped to the key, or 0L if none
 	 */
 	long delete(String key) throws IOException {
-		byte[] hash = hash(key);
-		long block = probe(hash, index2, capacity2);
+		hasher.hash(key);
+		if (bloom != null && !bloom.mightContain(hasher.hi, hasher.lo))
+			return 0L;
+		long block = probe(hasher.hi, hasher.lo, index2, capacity2);
 		long ptr = 0L;
-		int type = index2.read();
+		int type = probeBuf[0];
 		if (type != EMPTY) { // delete from index2
-			index2.seek(block + 17);
-			ptr = (type == ADDR) ? index2.readLong() : 0L;
+			ptr = (type == ADDR) ? index2.readLong(block + 17) : 0L;
 			size2--;
-			index2.seek(block);
-			index2.write(EMPTY);
-			writeHeader(index2, size2, capacity2);
+			tombstones2++;
+			index2.write(block, TOMBSTONE);
+			writeCounts(index2, size2, tombstones2);
+			modified();
 		} else if (index1 != null) {
-			block = probe(hash, index1, capacity1);
-			type = index1.read();
+			block = probe(hasher.hi, hasher.lo, index1, capacity1);
+			type = probeBuf[0];
 			if (type != EMPTY) { // delete from index1
-				index1.seek(block + 17);
-				ptr = (type == ADDR) ? index1.readLong() : 0L;
+				ptr = (type == ADDR) ? index1.readLong(block + 17) : 0L;
 				size1--;
-				index1.seek(block);
-				index1.write(EMPTY);
-				writeHeader(index1, size1, capacity1);
+				index1.write(block, TOMBSTONE);
+				writeSize(index1, size1);
+				modified();
 			}
 		}
 		return ptr;
 	}
 
 	/**
-	 * If there is already an address associated with the given key,
-	 * returns that address and ignores the {@code addr} argument;
-	 * else stores the given address and returns the same address.
+	 * Maps the given key to a row of the given type and value, unless the
+	 * key is already mapped.
+	 * @return true if the key was not mapped
 	 */
-	long updateAddr(String key, long addr) throws IOException {
-		byte[] hash = hash(key);
-		long block;
+	boolean insert(String key, int type, long val) throws IOException {
+		hasher.hash(key);
+		long hi = hasher.hi, lo = hasher.lo;
 		if (index1 != null) { // look in index1
-			block = probe(hash, index1, capacity1);
-			if (index1.read() != EMPTY) { // found in index1
-				index1.seek(block + 17);
-				return index1.readLong();
-			}
-		}
-		block = probe(hash, index2, capacity2);
-		if (index2.read() != EMPTY) { // found in index2
-			index2.seek(block + 17);
-			return index2.readLong();
+			probe(hi, lo, index1, capacity1);
+			if (probeBuf[0] != EMPTY) // found in index1
+				return false;
 		}
+		long block = probe(hi, lo, index2, capacity2);
+		if (probeBuf[0] != EMPTY) // found in index2
+			return false;
 
 		// not found - create new row
-		if ((float)size2 / capacity2 > MAX_LOAD_FACTOR && index1 == null) {
-			// start a new doubling
-			move2to1();
-			block = probe(hash, index2, capacity2);
+		if (reserveRow())
+			block = probe(hi, lo, index2, capacity2);
+		insert2(block, type, hi, lo, val);
+		modified();
+		return true;
+	}
+
+	/**
+	 * Maps the given key to a row of the given type and value, replacing
+	 * any previous mapping.
+	 * @return the address previously mapped to the key, or 0L if none
+	 */
+	long put(String key, int type, long val) throws IOException {
+		hasher.hash(key);
+		long hi = hasher.hi, lo = hasher.lo;
+		IndexFile index = index2;
+		long block = -1L;
+		if (index1 != null) { // look in index1
+			block = probe(hi, lo, index1, capacity1);
+			if (probeBuf[0] != EMPTY) // found in index1
+				index = index1;
+			else block = -1L;
 		}
-		index2.seek(block);
-		index2.write(ADDR);
-		index2.write(hash);
-		index2.writeLong(addr);
-		size2++;
-		writeHeader(index2, size2, capacity2);
-		return addr;
+		if (block < 0L)
+			block = probe(hi, lo, index2, capacity2);
+		int oldType = probeBuf[0];
+		if (oldType == EMPTY) { // not found - create new row
+			if (reserveRow())
+				block = probe(hi, lo, index2, capacity2);
+			insert2(block, type, hi, lo, val);
+			modified();
+			return 0L;
+		}
+		long old = index.readLong(block + 17);
+		writeRow(index, block, type, hi, lo, val);
+		modified();
+		return oldType == ADDR ? old : 0L;
 	}
 
 	boolean putLong(String key, long val) throws IOException {
-		byte[] hash = hash(key);
+		hasher.hash(key);
+		long hi = hasher.hi, lo = hasher.lo;
 		long block;
 		if (index1 != null) { // look in index 1
-			block = probe(hash, index1, capacity1);
-			int type = index1.read();
+			block = probe(hi, lo, index1, capacity1);
+			int type = probeBuf[0];
 			if (type == LONG) { // found in index1 - overwrite
-				index1.seek(block + 17);
-				index1.writeLong(val);
+				index1.writeLong(block + 17, val);
+				modified();
 				return true;
-			} else if (type == ADDR) return false; // wrong type
+			} else if (type != EMPTY) return false; // wrong type
+		}
+		block = probe(hi, lo, index2, capacity2);
+		if (probeBuf[0] == ADDR || probeBuf[0] == INLINE) {
+			return false; // wrong type
+		} else if (probeBuf[0] == LONG) { // found in index2 - overwrite
+			index2.writeLong(block + 17, val);
+		} else { // not found - create new row
+			if (reserveRow())
+				block = probe(hi, lo, index2, capacity2);
+			insert2(block, LONG, hi, lo, val);
 		}
-		block = probe(hash, index2, capacity2);
-		if (index2.read() == ADDR) return false; // wrong type
-		index2.seek(block);
-		index2.write(LONG);
-		index2.write(hash);
-		index2.writeLong(val);
+		modified();
 		return true;
 	}
 
+	/**
+	 * @return true if no key is mapped
+	 */
+	boolean isEmpty() {
+		return size1 + size2 == 0;
+	}
+
+	/**
+	 * Collects the values stored in the rows following a scan position:
+	 * the addresses of stored values, and the inlined values themselves.
+	 * Scan positions number the rows of index1, if the table is split,
+	 * followed by those of index2. Scans are weakly consistent: rows
+	 * inserted, deleted or rehashed between calls may be missed or repeated.
+	 * @param position the position to continue from, 0 to start a scan
+	 * @param max the maximum number of values to collect
+	 * @return the position to continue the scan from, or -1 if it is complete
+	 */
+	long scan(long position, int max, List<Long> addrs, List<byte[]> inlined)
+	throws IOException {
+		long rows = rows();
+		for (; position < rows; position++) {
+			if (addrs.size() + inlined.size() == max)
+				return position;
+			IndexFile index = indexAt(position);
+			long block = blockAt(position);
+			int type = index.read(block);
+			if (type == ADDR)
+				addrs.add(index.readLong(block + 17));
+			else if (type == INLINE)
+				inlined.add(unpackInline(index.readLong(block + 17)));
+		}
+		return -1L;
+	}
+
+	/**
+	 * @return the number of scan positions
+	 * @see #scan
+	 */
+	long rows() {
+		return (index1 == null ? 0L : capacity1) + capacity2;
+	}
+
+	private IndexFile indexAt(long position) {
+		return index1 != null && position < capacity1 ? index1 : index2;
+	}
+
+	private long blockAt(long position) {
+		long row = index1 != null && position < capacity1
+			? position : position - (index1 == null ? 0L : capacity1);
+		return row * ROW_SIZE + HEADER_SIZE;
+	}
+
+	/**
+	 * @return the address in the row at the given scan position, or 0L if
+	 *   the row does not map a key to an address
+	 */
+	long addrAt(long position) throws IOException {
+		IndexFile index = indexAt(position);
+		long block = blockAt(position);
+		return index.read(block) == ADDR ? index.readLong(block + 17) : 0L;
+	}
+
+	/**
+	 * Replaces the address in the row at the given scan position, which
+	 * must map a key to an address.
+	 */
+	void setAddrAt(long position, long addr) throws IOException {
+		indexAt(position).writeLong(blockAt(position) + 17, addr);
+		modified();
+	}
+
 	/**
 	 * Closes the HashStore, freeing any underlying resources.
 	 */
 	void close() throws IOException {
+		if (syncPolicy != StoreOptions.IndexSync.NEVER)
+			sync();
 		index2.close();
 		if (index1 != null) {
 			index1.close();
 		}
+		if (bloom != null)
+			bloom.save(new File(backingDir, BLOOM_FILE));
 	}
 
-	private void move2to1() throws IOException {
+	/**
+	 * Splits the table: index2 becomes index1, to be rehashed incrementally
+	 * into a new, empty index2 of the given capacity.
+	 */
+	private void move2to1(int newCapacity) throws IOException {
+		if (wal != null)
+			wal.checkpoint(); // the log must not refer to the renamed file
 		size1 = size2;
 		capacity1 = capacity2;
 		size2 = 0;
-		capacity2 *= 2;
+		tombstones2 = 0;
+		capacity2 = newCapacity;
 		index2.close();
-		new File(backingDir, INDEX_TWO_FILE).renameTo(new File(backingDir, INDEX_ONE_FILE));
-		index1 = new RandomAccessFile(new File(backingDir, INDEX_ONE_FILE), "rw");
-		index2 = new RandomAccessFile(new File(backingDir, INDEX_TWO_FILE), "rw");
-		index2.setLength(HEADER_SIZE + capacity2 * ROW_SIZE);
+		File index1file = new File(backingDir, INDEX_ONE_FILE);
+		if (!new File(backingDir, INDEX_TWO_FILE).renameTo(index1file))
+			throw new IOException("Could not rename " + INDEX_TWO_FILE);
+		index1 = open(index1file, WriteAheadLog.INDEX_ONE_FILE);
+		index2 = open(new File(backingDir, INDEX_TWO_FILE), WriteAheadLog.INDEX_TWO_FILE);
+		index2.setLength(HEADER_SIZE + (long)capacity2 * ROW_SIZE);
+		writeHeader(index2, size2, capacity2, tombstones2);
+		rehashCursor = HEADER_SIZE;
 	}
 
 	/**
-	 * If the table is still split, rehashes and moves one entry from index to index2.
+	 * If the table is still split, rehashes and moves one entry from index1
+	 * to index2. Once index1 is drained, it is closed and deleted.
+	 * Rehashed rows are replaced by tombstones rather than emptied, so that
+	 * the probe sequences of the index1 entries not yet rehashed stay intact.
+	 * If the table is not split but too many index2 rows are tombstones,
+	 * starts rehashing index2 into a new index2 of the same capacity.
 	 * @return true if an entry was rehashed, false otherwise
 	 */
-	boolean rehashOne() {
-		// TODO
-		return false;
+	boolean rehashOne() throws IOException {
+		if (index1 == null) {
+			if (tombstones2 <= capacity2 * MAX_TOMBSTONE_FACTOR)
+				return false;
+			move2to1(capacity2); // compact away the tombstones
+		}
+		long end = index1.length();
+		while (rehashCursor + ROW_SIZE <= end) {
+			if (rehashRow()) {
+				modified();
+				return true;
+			}
+		}
+		finishRehash();
+		return true;
 	}
 
-	private static long mod(byte[] b, long m) {
-		return new BigInteger(b)
-			.mod(BigInteger.valueOf(m)).longValue();
+	/**
+	 * Rehashes the given number of index1 rows, live or not, from the
+	 * rehash cursor, then closes index1 if it is drained. The table must
+	 * be split.
+	 */
+	private void rehashRows(int rows) throws IOException {
+		long end = index1.length();
+		boolean moved = false;
+		for (; rows > 0 && rehashCursor + ROW_SIZE <= end; rows--)
+			moved |= rehashRow();
+		if (moved)
+			modified();
+		if (rehashCursor + ROW_SIZE > end)
+			finishRehash();
+	}
+
+	/**
+	 * Moves the index1 row at the rehash cursor, if it is live, to index2,
+	 * and advances the cursor.
+	 * @return true if the row was live
+	 */
+	private boolean rehashRow() throws IOException {
+		long pos = rehashCursor;
+		rehashCursor += ROW_SIZE;
+		index1.read(pos, rowBuf);
+		int type = rowBuf[0];
+		if (!isLive(type))
+			return false; // empty, deleted or already moved
+		long hi = KeyHasher.getLong(rowBuf, 1);
+		long lo = KeyHasher.getLong(rowBuf, 9);
+		long val = KeyHasher.getLong(rowBuf, 17);
+
+		long block = probe(hi, lo, index2, capacity2);
+		if (probeBuf[0] == EMPTY) // index2 never shadows index1
+			insert2(block, type, hi, lo, val);
+		index1.write(pos, TOMBSTONE);
+		size1--;
+		writeSize(index1, size1);
+		return true;
 	}
 
-	// least significant 128 bits of SHA-256 hash
-	private byte[] hash(String input) {
-		sha256hasher.reset();
-		byte[] trunc = new byte[16];
-		byte[] hash = sha256hasher.digest(input.getBytes(UTF_8));
-		System.arraycopy(hash, 16, trunc, 0, 16);
-		return trunc;
+	/**
+	 * Closes and deletes the drained index1; the table is no longer split.
+	 */
+	private void finishRehash() throws IOException {
+		if (wal != null)
+			wal.checkpoint(); // the log must not refer to the deleted file
+		index1.close();
+		index1 = null;
+		size1 = capacity1 = 0;
+		if (!new File(backingDir, INDEX_ONE_FILE).delete())
+			throw new IOException("Could not delete " + INDEX_ONE_FILE);
 	}
 
 }
@@ -0,0 +1,55 @@
+package common.data;
+
+import java.io.*;
+
+/**
+ * Random-access storage for the rows of a {@link HashIndex}.
+ * All positions are absolute byte offsets into the index file, so callers
+ * never depend on a shared file pointer.
+ */
+abstract class IndexFile {
+
+	/**
+	 * Opens the given index file, creating it if it does not exist.
+	 * @param mapped access the file through a memory mapping
+	 *   instead of seeking and reading
+	 */
+	static IndexFile open(File file, boolean mapped) throws IOException {
+		return mapped ? new MappedIndexFile(file) : new RandomAccessIndexFile(file);
+	}
+
+	/** Reads the unsigned byte at the given position. */
+	abstract int read(long pos) throws IOException;
+
+	/** Fills the given array with the bytes starting at the given position. */
+	abstract void read(long pos, byte[] bytes) throws IOException;
+
+	/**
+	 * Like {@link #read(long, byte[])}, but may be called from any thread,
+	 * concurrently with the thread that writes the file.
+	 */
+	abstract void readConcurrently(long pos, byte[] bytes) throws IOException;
+
+	abstract int readInt(long pos) throws IOException;
+
+	abstract long readLong(long pos) throws IOException;
+
+	abstract void write(long pos, int b) throws IOException;
+
+	abstract void write(long pos, byte[] bytes) throws IOException;
+
+	abstract void writeInt(long pos, int v) throws IOException;
+
+	abstract void writeLong(long pos, long v) throws IOException;
+
+	abstract long length() throws IOException;
+
+	/** Sets the length of the file; new space reads as zeroes. */
+	abstract void setLength(long length) throws IOException;
+
+	/** Forces all changes made so far to the storage device. */
+	abstract void sync() throws IOException;
+
+	abstract void close() throws IOException;
+
+}
@@ -0,0 +1,118 @@
+package common.data;
+
+import java.io.*;
+
+/**
+ * An index file whose writes go through a {@link WriteAheadLog}.
+ * Reads see the writes not yet committed; the underlying file only
+ * receives writes once they are committed.
+ */
+class JournaledIndexFile extends IndexFile implements WriteAheadLog.Target {
+
+	private final IndexFile file;
+	private final WriteAheadLog wal;
+	private final int fileId;
+	private final byte[] scratch;
+
+	JournaledIndexFile(IndexFile file, WriteAheadLog wal, int fileId) {
+		this.file = file;
+		this.wal = wal;
+		this.fileId = fileId;
+		scratch = new byte[8];
+		wal.setTarget(fileId, this);
+	}
+
+	private byte[] readScratch(long pos, int len) throws IOException {
+		byte[] bytes = len == scratch.length ? scratch : new byte[len];
+		file.read(pos, bytes);
+		wal.overlay(fileId, pos, bytes, 0, len);
+		return bytes;
+	}
+
+	@Override
+	int read(long pos) throws IOException {
+		if (!wal.hasPending(fileId))
+			return file.read(pos);
+		return readScratch(pos, 1)[0] & 0xff;
+	}
+
+	@Override
+	void read(long pos, byte[] bytes) throws IOException {
+		file.read(pos, bytes);
+		wal.overlay(fileId, pos, bytes, 0, bytes.length);
+	}
+
+	/** Sees only committed writes. */
+	@Override
+	void readConcurrently(long pos, byte[] bytes) throws IOException {
+		file.readConcurrently(pos, bytes);
+	}
+
+	@Override
+	int readInt(long pos) throws IOException {
+		if (!wal.hasPending(fileId))
+			return file.readInt(pos);
+		return (int) (KeyHasher.getLong(readScratch(pos, 8), 0) >> 32);
+	}
+
+	@Override
+	long readLong(long pos) throws IOException {
+		if (!wal.hasPending(fileId))
+			return file.readLong(pos);
+		return KeyHasher.getLong(readScratch(pos, 8), 0);
+	}
+
+	@Override
+	void write(long pos, int b) throws IOException {
+		scratch[0] = (byte) b;
+		wal.write(fileId, pos, scratch, 0, 1);
+	}
+
+	@Override
+	void write(long pos, byte[] bytes) throws IOException {
+		wal.write(fileId, pos, bytes, 0, bytes.length);
+	}
+
+	@Override
+	void writeInt(long pos, int v) throws IOException {
+		KeyHasher.putLong(scratch, 0, (long) v << 32);
+		wal.write(fileId, pos, scratch, 0, 4);
+	}
+
+	@Override
+	void writeLong(long pos, long v) throws IOException {
+		KeyHasher.putLong(scratch, 0, v);
+		wal.write(fileId, pos, scratch, 0, 8);
+	}
+
+	@Override
+	long length() throws IOException {
+		return file.length();
+	}
+
+	@Override
+	void setLength(long length) throws IOException {
+		file.setLength(length); // new space is zeroes, with or without the log
+	}
+
+	/** Does nothing: writes are durable once the log is committed. */
+	@Override
+	void sync() { }
+
+	@Override
+	void close() throws IOException {
+		wal.setTarget(fileId, null);
+		file.close();
+	}
+
+	@Override
+	public void writeThrough(long pos, byte[] bytes) throws IOException {
+		file.write(pos, bytes);
+	}
+
+	@Override
+	public void syncThrough() throws IOException {
+		file.sync();
+	}
+
+}
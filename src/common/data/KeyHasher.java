@@ -0,0 +1,103 @@
+package common.data;
+
+import java.security.*;
+
+/**
+ * Computes the 128-bit key hashes used by {@link HashIndex} without
+ * allocating: keys are UTF-8 encoded into a reusable buffer and the
+ * SHA-256 digest is written into a reusable array.
+ * Instances are not thread-safe.
+ */
+class KeyHasher {
+
+	private final MessageDigest sha256hasher;
+	private final byte[] digest;
+	private byte[] encoded;
+
+	/** Most significant half of the last computed hash. */
+	long hi;
+	/** Least significant half of the last computed hash. */
+	long lo;
+
+	KeyHasher() {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException impossible) { }
+		sha256hasher = md;
+		digest = new byte[32];
+		encoded = new byte[64];
+	}
+
+	/**
+	 * Hashes the given key to the least significant 128 bits of its
+	 * SHA-256 hash, which are then available in {@link #hi} and {@link #lo}.
+	 */
+	void hash(String key) {
+		int len = encode(key);
+		sha256hasher.reset();
+		sha256hasher.update(encoded, 0, len);
+		try {
+			sha256hasher.digest(digest, 0, digest.length);
+		} catch (DigestException impossible) {
+			throw new IllegalStateException(impossible);
+		}
+		hi = getLong(digest, 16);
+		lo = getLong(digest, 24);
+	}
+
+	/**
+	 * Encodes the key into the reusable buffer, producing the same bytes as
+	 * {@code key.getBytes(UTF_8)}.
+	 * @return the number of encoded bytes
+	 */
+	private int encode(String key) {
+		int n = key.length();
+		if (encoded.length < n * 3)
+			encoded = new byte[n * 3]; // grows to the longest key seen
+		byte[] buf = encoded;
+		int p = 0;
+		for (int i = 0; i < n; i++) {
+			char c = key.charAt(i);
+			if (c < 0x80) {
+				buf[p++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[p++] = (byte) (0xc0 | (c >> 6));
+				buf[p++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < n
+						&& Character.isLowSurrogate(key.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, key.charAt(++i));
+					buf[p++] = (byte) (0xf0 | (cp >> 18));
+					buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buf[p++] = (byte) (0x80 | (cp & 0x3f));
+				} else {
+					buf[p++] = '?'; // unpaired surrogate, as String.getBytes
+				}
+			} else {
+				buf[p++] = (byte) (0xe0 | (c >> 12));
+				buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[p++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return p;
+	}
+
+	/** Reads a big-endian long from the given array. */
+	static long getLong(byte[] b, int off) {
+		long v = 0L;
+		for (int i = 0; i < 8; i++)
+			v = (v << 8) | (b[off + i] & 0xffL);
+		return v;
+	}
+
+	/** Writes a big-endian long into the given array. */
+	static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; i--) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An ordered set of the keys of a store, kept in memory and persisted as
+ * an append-only log of additions and removals. The {@link HashIndex} only
+ * keeps key hashes, so this is what makes keys enumerable and prefix scans
+ * possible.
+ */
+class KeyLog {
+	private static final String KEY_LOG_FILE = ".keys";
+	private static final String COMPACTION_FILE = ".keys.tmp";
+
+	private static final byte INCOMPLETE = 0;
+	private static final byte COMPLETE = 1;
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+
+	// compact on open once the log holds this many more records than keys
+	private static final int MIN_GARBAGE_RECORDS = 1024;
+
+	private final File backingDir;
+	private final TreeSet<String> keys;
+	private final boolean complete;
+	private DataOutputStream log;
+	private int records;
+
+	/**
+	 * Opens or creates the key log of the given backing directory.
+	 * @param emptyStore
+	 *   Whether the store holds no keys yet. A key log created for a store
+	 *   that already holds keys is incomplete: it lists only the keys
+	 *   written from then on.
+	 */
+	KeyLog(File backingDir, boolean emptyStore) throws IOException {
+		this.backingDir = backingDir;
+		keys = new TreeSet<String>();
+		File logFile = new File(backingDir, KEY_LOG_FILE);
+		if (logFile.exists() && logFile.length() > 0) {
+			DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(logFile)));
+			try {
+				complete = in.readByte() == COMPLETE;
+				replay(in);
+			} finally {
+				in.close();
+			}
+			if (records - keys.size() > MIN_GARBAGE_RECORDS + keys.size())
+				compact();
+		} else {
+			complete = emptyStore;
+			compact(); // writes the header of a new log
+		}
+		log = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(logFile, true)));
+	}
+
+	private void replay(DataInputStream in) throws IOException {
+		for (;;) {
+			byte op;
+			String key;
+			try {
+				op = in.readByte();
+				key = in.readUTF();
+			} catch (EOFException e) {
+				return; // end of log, or a record cut short by a crash
+			}
+			if (op == ADD)
+				keys.add(key);
+			else
+				keys.remove(key);
+			records++;
+		}
+	}
+
+	/**
+	 * Rewrites the log with one addition per key.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(backingDir, COMPACTION_FILE);
+		write(compacted, keys);
+		File logFile = new File(backingDir, KEY_LOG_FILE);
+		if (!compacted.renameTo(logFile)) {
+			logFile.delete();
+			if (!compacted.renameTo(logFile))
+				throw new IOException("Could not replace " + KEY_LOG_FILE);
+		}
+		records = keys.size();
+	}
+
+	/**
+	 * Writes a log of one addition per given key to the given file.
+	 */
+	private void write(File file, Collection<String> keys) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(file)));
+		try {
+			out.writeByte(complete ? COMPLETE : INCOMPLETE);
+			for (String key : keys) {
+				out.writeByte(ADD);
+				out.writeUTF(key);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the keys of the log as they are now, in order
+	 */
+	List<String> copyKeys() {
+		return new ArrayList<String>(keys);
+	}
+
+	/**
+	 * Writes the given keys, copied from this log, as the key log of a
+	 * copy of the store in the given directory.
+	 */
+	void copyTo(File dir, List<String> keys) throws IOException {
+		File file = new File(dir, KEY_LOG_FILE);
+		write(file, keys);
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void append(byte op, String key) throws IOException {
+		log.writeByte(op);
+		log.writeUTF(key);
+		log.flush();
+		records++;
+	}
+
+	/**
+	 * @return true if the log lists every key of the store
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	void add(String key) throws IOException {
+		if (keys.add(key))
+			append(ADD, key);
+	}
+
+	void remove(String key) throws IOException {
+		if (keys.remove(key))
+			append(REMOVE, key);
+	}
+
+	/**
+	 * Adds to the given list, in order, up to max keys that start with the
+	 * given prefix and follow the given key.
+	 * @param after the last key of the previous batch, or null to start
+	 *   with the first key with the prefix
+	 * @return true if there may be more keys with the prefix
+	 */
+	boolean scan(String prefix, String after, int max, List<String> batch) {
+		SortedSet<String> tail = after == null ?
+			keys.tailSet(prefix) : keys.tailSet(after, false);
+		for (String key : tail) {
+			if (!key.startsWith(prefix))
+				return false;
+			if (batch.size() == max)
+				return true;
+			batch.add(key);
+		}
+		return false;
+	}
+
+	void close() throws IOException {
+		log.close();
+	}
+
+}
@@ -0,0 +1,716 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * A log-structured engine. Writes go to an ordered table in memory, the
+ * memtable, and to a commit log, which a commit forces to the storage
+ * device with one sequential write. Once the memtable outgrows its size,
+ * it is flushed to a new segment file of sorted entries, and the log is
+ * emptied. Lookups read the memtable, then the segments from the newest;
+ * scans merge them in key order. When there are too many segments, they
+ * are merged into one a few entries at a time, between transactions,
+ * which drops the entries of keys removed or written again since.
+ *
+ * Nothing is written in place: segments are written once, and listed in
+ * a manifest that is replaced as a whole. This suits stores whose keys
+ * are mostly added and removed rather than rewritten, and keeps keys in
+ * order for scans by prefix.
+ */
+class LogStructuredEngine implements BuiltInEngine {
+
+	static final String MANIFEST_FILE = ".lsm.manifest";
+	private static final String MANIFEST_TEMP_FILE = ".lsm.manifest.tmp";
+	private static final String LOG_FILE = ".lsm.log";
+	private static final String SEGMENT_PREFIX = ".seg.";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int MANIFEST_MAGIC = 0x4c736d31;
+
+	private static final byte PUT = 1;
+	private static final byte PUT_LONG = 2;
+	private static final byte REMOVE = 3;
+	private static final byte COMMIT = 4;
+
+	// marks a removed key in the memtable
+	private static final Object TOMBSTONE = new Object();
+	// bytes of memtable counted per entry besides its key and value
+	private static final int ENTRY_OVERHEAD = 64;
+	// entries merged per step
+	private static final int MERGE_STEP = 64;
+
+	private final File backingDir;
+	private final long memtableBytes;
+	private final int maxSegments;
+	// keys mapped to byte[] values, Long longs, or TOMBSTONE
+	private final TreeMap<String, Object> memtable = new TreeMap<String, Object>();
+	private long memtableSize;
+	private final List<Segment> segments = new ArrayList<Segment>(); // oldest first
+	private long nextSegment;
+	private final RandomAccessFile log;
+	private long logLength;
+	private final ByteArrayOutputStream group = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+	private final KeyHasher hasher = new KeyHasher();
+	private final Entry probe = new Entry();
+	// the merge in progress, if any: its inputs, which are the oldest
+	// segments, and its output
+	private List<Segment> mergeInputs;
+	private Segment.Cursor mergeCursor;
+	private Segment.Writer mergeWriter;
+	private long mergeNumber;
+	// merged segments, deleted once no copy reads them
+	private final List<Segment> obsolete = new ArrayList<Segment>();
+	private final AtomicInteger copies = new AtomicInteger();
+
+	/**
+	 * Opens the engine of the given backing directory, or creates one,
+	 * replaying the commits of a previous run into the memtable.
+	 */
+	LogStructuredEngine(File backingDir, StoreOptions options) throws IOException {
+		this.backingDir = backingDir;
+		memtableBytes = options.memtableBytes;
+		maxSegments = Math.max(options.maxSegments, 1);
+		File manifest = new File(backingDir, MANIFEST_FILE);
+		if (manifest.exists()) {
+			for (long number : readManifest(manifest)) {
+				segments.add(new Segment(segmentFile(number), number));
+				nextSegment = Math.max(nextSegment, number + 1L);
+			}
+		} else {
+			writeManifest();
+		}
+		deleteOrphans();
+		log = new RandomAccessFile(new File(backingDir, LOG_FILE), "rw");
+		recover();
+	}
+
+	private File segmentFile(long number) {
+		return new File(backingDir, SEGMENT_PREFIX + number);
+	}
+
+	private File tempFile(long number) {
+		return new File(backingDir, SEGMENT_PREFIX + number + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Deletes the segment files that the manifest does not list, left by a
+	 * merge or flush interrupted by a crash.
+	 */
+	private void deleteOrphans() {
+		Set<String> live = new HashSet<String>();
+		for (Segment segment : segments)
+			live.add(segment.file.getName());
+		String[] names = backingDir.list();
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (names[i].startsWith(SEGMENT_PREFIX) && !live.contains(names[i]))
+				new File(backingDir, names[i]).delete();
+		}
+		new File(backingDir, MANIFEST_TEMP_FILE).delete();
+	}
+
+	private static List<Long> readManifest(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try {
+			if (in.readInt() != MANIFEST_MAGIC)
+				throw new IOException("Corrupt " + file);
+			int n = in.readInt();
+			List<Long> numbers = new ArrayList<Long>();
+			for (int i = 0; i < n; i++)
+				numbers.add(in.readLong());
+			return numbers;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeManifest() throws IOException {
+		List<Long> numbers = new ArrayList<Long>();
+		for (Segment segment : segments)
+			numbers.add(segment.number);
+		writeManifest(backingDir, numbers);
+	}
+
+	/**
+	 * Replaces the manifest of the given directory with one that lists the
+	 * given segments, oldest first.
+	 */
+	private static void writeManifest(File dir, List<Long> numbers)
+	throws IOException {
+		File temp = new File(dir, MANIFEST_TEMP_FILE);
+		FileOutputStream fos = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(numbers.size());
+			for (long number : numbers)
+				out.writeLong(number);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File manifest = new File(dir, MANIFEST_FILE);
+		if (!temp.renameTo(manifest)) {
+			manifest.delete();
+			if (!temp.renameTo(manifest))
+				throw new IOException("Could not replace " + MANIFEST_FILE);
+		}
+	}
+
+	/**
+	 * Replays the writes of every intact commit in the log into the
+	 * memtable, and cuts off the rest of the log.
+	 */
+	private void recover() throws IOException {
+		byte[] bytes = new byte[(int) log.length()];
+		log.readFully(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Map<String, Object> writes = new HashMap<String, Object>();
+		try {
+			while (in.available() > 0) {
+				byte type = in.readByte();
+				if (type == COMMIT) {
+					crc.reset();
+					crc.update(bytes, (int) logLength,
+						bytes.length - in.available() - 1 - (int) logLength);
+					if (in.available() < 8 || in.readLong() != crc.getValue())
+						break; // torn commit
+					for (Map.Entry<String, Object> w : writes.entrySet())
+						memtablePut(w.getKey(), w.getValue());
+					writes.clear();
+					logLength = bytes.length - in.available();
+				} else if (type == PUT) {
+					String key = in.readUTF();
+					int length = in.readInt();
+					if (length < 0 || length > in.available())
+						break;
+					byte[] value = new byte[length];
+					in.readFully(value);
+					writes.put(key, value);
+				} else if (type == PUT_LONG) {
+					writes.put(in.readUTF(), in.readLong());
+				} else if (type == REMOVE) {
+					writes.put(in.readUTF(), TOMBSTONE);
+				} else {
+					break; // garbage after the last commit
+				}
+			}
+		} catch (IOException e) {
+			// a commit cut short by the crash; it never completed
+		}
+		log.setLength(logLength);
+		log.getFD().sync();
+	}
+
+	private void memtablePut(String key, Object value) {
+		Object old = memtable.put(key, value);
+		memtableSize += size(key, value) - (old == null ? 0L : size(key, old));
+	}
+
+	private static long size(String key, Object value) {
+		return ENTRY_OVERHEAD + 2L * key.length()
+			+ (value instanceof byte[] ? ((byte[]) value).length : 0);
+	}
+
+	@Override
+	public void lookup(String key, boolean readValue, Entry entry)
+	throws IOException {
+		Object value = memtable.get(key);
+		entry.value = null;
+		if (value == TOMBSTONE) {
+			entry.type = Entry.NONE;
+		} else if (value instanceof Long) {
+			entry.type = Entry.LONG;
+			entry.l = (Long) value;
+		} else if (value != null) {
+			entry.type = Entry.VALUE;
+			if (readValue)
+				entry.value = ((byte[]) value).clone();
+		} else {
+			hasher.hash(key);
+			for (int i = segments.size() - 1; i >= 0; i--) {
+				if (segments.get(i).lookup(key, hasher.hi, hasher.lo, entry))
+					return;
+			}
+			entry.type = Entry.NONE;
+		}
+	}
+
+	/** Segments are read by the processor only. */
+	@Override
+	public boolean lookupConcurrently(String key, boolean readValue,
+	Entry entry) {
+		return false;
+	}
+
+	/** The log records the writes themselves. */
+	@Override
+	public void logOperation(Transaction.Type type, String key, String newKey) {
+	}
+
+	/**
+	 * Adds the record written to {@link #recordOut} to the group to be
+	 * committed, once it is complete: a key too long to log adds nothing.
+	 */
+	private void logRecord() {
+		try {
+			record.writeTo(group);
+		} catch (IOException impossible) { }
+		record.reset();
+	}
+
+	@Override
+	public void put(String key, byte[] value) throws IOException {
+		record.reset();
+		recordOut.writeByte(PUT);
+		recordOut.writeUTF(key);
+		recordOut.writeInt(value.length);
+		recordOut.write(value);
+		logRecord();
+		memtablePut(key, value.clone()); // the caller keeps its array
+	}
+
+	@Override
+	public boolean putLong(String key, long l) throws IOException {
+		lookup(key, false, probe);
+		if (probe.type == Entry.VALUE)
+			return false;
+		record.reset();
+		recordOut.writeByte(PUT_LONG);
+		recordOut.writeUTF(key);
+		recordOut.writeLong(l);
+		logRecord();
+		memtablePut(key, l);
+		return true;
+	}
+
+	@Override
+	public void remove(String key) throws IOException {
+		record.reset();
+		recordOut.writeByte(REMOVE);
+		recordOut.writeUTF(key);
+		logRecord();
+		if (segments.isEmpty()) { // nothing older to hide
+			Object old = memtable.remove(key);
+			if (old != null)
+				memtableSize -= size(key, old);
+		} else {
+			memtablePut(key, TOMBSTONE);
+		}
+	}
+
+	@Override
+	public boolean move(String key, String newKey) throws IOException {
+		Entry entry = new Entry();
+		lookup(key, true, entry);
+		lookup(newKey, false, probe);
+		if (entry.type == Entry.NONE || probe.type != Entry.NONE)
+			return false;
+		if (entry.type == Entry.VALUE)
+			put(newKey, entry.value);
+		else putLong(newKey, entry.l);
+		remove(key);
+		return true;
+	}
+
+	@Override
+	public boolean canScanKeys() {
+		return true;
+	}
+
+	@Override
+	public boolean canListKeys() {
+		return true;
+	}
+
+	@Override
+	public boolean scanKeys(String prefix, String after, int max,
+	List<String> keys) throws IOException {
+		Segment.Cursor c = after == null
+			? cursor(prefix, true) : cursor(after, false);
+		while (c.next()) {
+			if (!c.key.startsWith(prefix))
+				return false;
+			if (c.type == Segment.TOMBSTONE
+					|| c.key.startsWith(TransactionProcessor.VERSION_PREFIX))
+				continue;
+			if (keys.size() == max)
+				return true;
+			keys.add(c.key);
+		}
+		return false;
+	}
+
+	/** Values are scanned in key order, after the given key. */
+	@Override
+	public long scanValues(long position, String after, int max,
+	List<byte[]> values, List<String> keys) throws IOException {
+		Segment.Cursor c = cursor(after, false);
+		while (c.next()) {
+			if (c.type != Segment.VALUE)
+				continue;
+			if (values.size() == max)
+				return 0L;
+			values.add(c.value);
+			keys.add(c.key);
+		}
+		return -1L;
+	}
+
+	/**
+	 * @param from the key to start from, or null to start with the first
+	 * @return a cursor over the entries of the memtable and all segments
+	 */
+	private Segment.Cursor cursor(String from, boolean inclusive) {
+		List<Segment.Cursor> sources = new ArrayList<Segment.Cursor>();
+		final Iterator<Map.Entry<String, Object>> entries = (from == null
+			? memtable : memtable.tailMap(from, inclusive)).entrySet().iterator();
+		sources.add(new Segment.Cursor() {
+			@Override boolean next() {
+				if (!entries.hasNext())
+					return false;
+				Map.Entry<String, Object> entry = entries.next();
+				key = entry.getKey();
+				Object v = entry.getValue();
+				value = null;
+				if (v == TOMBSTONE) {
+					type = Segment.TOMBSTONE;
+				} else if (v instanceof Long) {
+					type = Segment.LONG;
+					l = (Long) v;
+				} else {
+					type = Segment.VALUE;
+					value = ((byte[]) v).clone(); // the memtable keeps its own
+				}
+				return true;
+			}
+		});
+		for (int i = segments.size() - 1; i >= 0; i--)
+			sources.add(segments.get(i).cursor(from, inclusive));
+		return new MergeCursor(sources);
+	}
+
+	@Override
+	public boolean hasPending() {
+		return group.size() > 0;
+	}
+
+	/**
+	 * Appends the writes since the last commit to the log and syncs it,
+	 * then flushes the memtable if it has outgrown its size.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (group.size() == 0)
+			return;
+		byte[] bytes = group.toByteArray();
+		crc.reset();
+		crc.update(bytes, 0, bytes.length);
+		DataOutputStream groupOut = new DataOutputStream(group);
+		groupOut.writeByte(COMMIT);
+		groupOut.writeLong(crc.getValue());
+		byte[] commit = group.toByteArray();
+		try {
+			log.seek(logLength);
+			log.write(commit);
+			log.getFD().sync();
+		} catch (IOException e) {
+			// drop the partial commit; the group is logged again next time
+			log.setLength(logLength);
+			group.reset();
+			group.write(bytes, 0, bytes.length);
+			throw e;
+		}
+		logLength += commit.length;
+		group.reset();
+		if (memtableSize > memtableBytes) {
+			try {
+				flushMemtable();
+			} catch (IOException ignore) { } // retried with the next commit
+		}
+	}
+
+	/**
+	 * Writes the committed memtable to a new segment, then empties the
+	 * memtable and the log.
+	 */
+	private void flushMemtable() throws IOException {
+		if (memtable.isEmpty())
+			return;
+		long number = nextSegment++;
+		File file = segmentFile(number);
+		Segment.Writer writer = new Segment.Writer(file, memtable.size(), hasher);
+		Segment segment = null;
+		try {
+			for (Map.Entry<String, Object> entry : memtable.entrySet()) {
+				Object value = entry.getValue();
+				if (value == TOMBSTONE) {
+					if (!segments.isEmpty()) // nothing older to hide otherwise
+						writer.add(entry.getKey(), Segment.TOMBSTONE, 0L, null);
+				} else if (value instanceof Long) {
+					writer.add(entry.getKey(), Segment.LONG, (Long) value, null);
+				} else {
+					writer.add(entry.getKey(), Segment.VALUE, 0L, (byte[]) value);
+				}
+			}
+			if (writer.count() > 0) {
+				writer.finish();
+				segment = new Segment(file, number);
+			} else writer.abandon();
+		} catch (IOException e) {
+			writer.abandon();
+			throw e;
+		}
+		if (segment != null) {
+			segments.add(segment);
+			try {
+				writeManifest();
+			} catch (IOException e) {
+				segments.remove(segments.size() - 1);
+				segment.close();
+				file.delete();
+				throw e;
+			}
+		}
+		memtable.clear();
+		memtableSize = 0L;
+		log.setLength(0L);
+		log.getFD().sync();
+		logLength = 0L;
+	}
+
+	/** Merges a few entries, if the segments are to be merged. */
+	@Override
+	public void step() throws IOException {
+		deleteObsolete();
+		mergeStep();
+	}
+
+	@Override
+	public void idle() {
+		deleteObsolete();
+	}
+
+	@Override
+	public boolean idleStep() throws IOException {
+		return mergeStep();
+	}
+
+	/**
+	 * Merges a few entries of all segments into one, once there are more
+	 * segments than the maximum. Since the merge includes the oldest
+	 * segment, no entry is left for a tombstone to hide, and tombstones
+	 * are dropped along with the entries they hide. Segments flushed
+	 * meanwhile are not merged.
+	 * @return true if a merge is in progress
+	 */
+	private boolean mergeStep() throws IOException {
+		if (mergeWriter == null) {
+			if (segments.size() <= maxSegments)
+				return false;
+			mergeInputs = new ArrayList<Segment>(segments);
+			List<Segment.Cursor> sources = new ArrayList<Segment.Cursor>();
+			long expectedKeys = 0L;
+			for (int i = mergeInputs.size() - 1; i >= 0; i--) {
+				sources.add(mergeInputs.get(i).cursor(null, false));
+				expectedKeys += mergeInputs.get(i).count();
+			}
+			mergeCursor = new MergeCursor(sources);
+			mergeNumber = nextSegment++;
+			mergeWriter = new Segment.Writer(tempFile(mergeNumber),
+				(int) Math.min(expectedKeys, Integer.MAX_VALUE / 16), hasher);
+		}
+		try {
+			for (int i = 0; i < MERGE_STEP; i++) {
+				if (!mergeCursor.next()) {
+					finishMerge();
+					return false;
+				}
+				if (mergeCursor.type != Segment.TOMBSTONE) {
+					mergeWriter.add(mergeCursor.key, mergeCursor.type,
+						mergeCursor.l, mergeCursor.value);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			mergeWriter.abandon(); // restarted on the next step
+			mergeWriter = null;
+			mergeInputs = null;
+			mergeCursor = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Installs the merged segment in place of its inputs.
+	 */
+	private void finishMerge() throws IOException {
+		mergeWriter.finish();
+		File file = segmentFile(mergeNumber);
+		if (!tempFile(mergeNumber).renameTo(file))
+			throw new IOException("Could not rename " + tempFile(mergeNumber));
+		Segment merged;
+		try {
+			merged = new Segment(file, mergeNumber);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		segments.subList(0, mergeInputs.size()).clear();
+		segments.add(0, merged);
+		try {
+			writeManifest();
+		} catch (IOException e) {
+			segments.remove(0);
+			segments.addAll(0, mergeInputs);
+			merged.close();
+			file.delete();
+			throw e;
+		}
+		for (Segment input : mergeInputs) {
+			try {
+				input.close();
+			} catch (IOException ignore) { }
+		}
+		obsolete.addAll(mergeInputs);
+		mergeWriter = null;
+		mergeInputs = null;
+		mergeCursor = null;
+		deleteObsolete();
+	}
+
+	/** Deletes the files of merged segments, unless a copy reads them. */
+	private void deleteObsolete() {
+		if (obsolete.isEmpty() || copies.get() > 0)
+			return;
+		for (Segment segment : obsolete)
+			segment.file.delete();
+		obsolete.clear();
+	}
+
+	@Override
+	public boolean canCopy() {
+		return true;
+	}
+
+	/**
+	 * Flushes the memtable, so that the copy is of the live segments as
+	 * they are now; segments merged meanwhile are kept until it is made.
+	 */
+	@Override
+	public Copy startCopy(final File dir) throws IOException {
+		flush();
+		flushMemtable();
+		final List<Segment> live = new ArrayList<Segment>(segments);
+		copies.incrementAndGet();
+		return new Copy() {
+			private boolean done;
+
+			@Override public void copy(long bytesPerSecond)
+			throws IOException, InterruptedException {
+				try {
+					byte[] buf = new byte[64 << 10];
+					long start = System.nanoTime();
+					long bytes = 0L;
+					List<Long> numbers = new ArrayList<Long>();
+					for (Segment segment : live) {
+						InputStream in = new FileInputStream(segment.file);
+						FileOutputStream out = new FileOutputStream(
+							new File(dir, segment.file.getName()));
+						try {
+							for (int n; (n = in.read(buf)) > 0; ) {
+								out.write(buf, 0, n);
+								bytes += n;
+								Snapshot.pace(start, bytes, bytesPerSecond);
+							}
+							out.getFD().sync();
+						} finally {
+							in.close();
+							out.close();
+						}
+						numbers.add(segment.number);
+					}
+					writeManifest(dir, numbers);
+				} finally {
+					abandon();
+				}
+			}
+
+			@Override public synchronized void abandon() {
+				if (!done) {
+					done = true;
+					copies.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Flushes the memtable, so that the store opens without replaying the
+	 * log, and closes the files.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mergeWriter != null) {
+			mergeWriter.abandon();
+			mergeWriter = null;
+		}
+		try {
+			flush();
+			flushMemtable();
+		} catch (IOException ignore) { } // replayed when next opened
+		for (Segment segment : segments)
+			segment.close();
+		log.close();
+	}
+
+	/**
+	 * Merges cursors given newest first into one in key order. Of the
+	 * entries of a key, only that of the newest cursor is seen.
+	 */
+	private static class MergeCursor extends Segment.Cursor {
+		private final List<Segment.Cursor> sources;
+		private final boolean[] valid;
+		private boolean started;
+
+		MergeCursor(List<Segment.Cursor> sources) {
+			this.sources = sources;
+			valid = new boolean[sources.size()];
+		}
+
+		@Override
+		boolean next() throws IOException {
+			if (!started) {
+				for (int i = 0; i < valid.length; i++)
+					valid[i] = sources.get(i).next();
+				started = true;
+			}
+			int min = -1;
+			for (int i = 0; i < valid.length; i++) {
+				if (valid[i] && (min < 0 || sources.get(i).key.compareTo(
+						sources.get(min).key) < 0))
+					min = i;
+			}
+			if (min < 0)
+				return false;
+			Segment.Cursor c = sources.get(min);
+			key = c.key;
+			type = c.type;
+			l = c.l;
+			value = c.value;
+			for (int i = min; i < valid.length; i++) {
+				if (valid[i] && sources.get(i).key.equals(key))
+					valid[i] = sources.get(i).next();
+			}
+			return true;
+		}
+	}
+
+}
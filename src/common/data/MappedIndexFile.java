@@ -0,0 +1,121 @@
+package common.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * An index file accessed through a memory mapping of the whole file,
+ * so that probing a row is a plain memory read rather than a system call.
+ * The mapping is replaced whenever the length of the file changes.
+ */
+class MappedIndexFile extends IndexFile {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private volatile MappedByteBuffer buf;
+
+	MappedIndexFile(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		map();
+	}
+
+	private void map() throws IOException {
+		long length = channel.size();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Index file too large to map.");
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0L, length);
+	}
+
+	private static int checkPos(ByteBuffer buf, long pos, int len)
+	throws IOException {
+		if (pos < 0 || pos + len > buf.capacity())
+			throw new EOFException();
+		return (int) pos;
+	}
+
+	private int checkPos(long pos, int len) throws IOException {
+		return checkPos(buf, pos, len);
+	}
+
+	@Override
+	int read(long pos) throws IOException {
+		return buf.get(checkPos(pos, 1)) & 0xff;
+	}
+
+	@Override
+	void read(long pos, byte[] bytes) throws IOException {
+		int idx = checkPos(pos, bytes.length);
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf.get(idx + i);
+	}
+
+	/** Absolute gets do not change the buffer, so any thread may read. */
+	@Override
+	void readConcurrently(long pos, byte[] bytes) throws IOException {
+		MappedByteBuffer b = buf; // replaced when the file is resized
+		if (b == null)
+			throw new ClosedChannelException();
+		int idx = checkPos(b, pos, bytes.length);
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = b.get(idx + i);
+	}
+
+	@Override
+	int readInt(long pos) throws IOException {
+		return buf.getInt(checkPos(pos, 4));
+	}
+
+	@Override
+	long readLong(long pos) throws IOException {
+		return buf.getLong(checkPos(pos, 8));
+	}
+
+	@Override
+	void write(long pos, int b) throws IOException {
+		buf.put(checkPos(pos, 1), (byte) b);
+	}
+
+	@Override
+	void write(long pos, byte[] bytes) throws IOException {
+		int idx = checkPos(pos, bytes.length);
+		for (int i = 0; i < bytes.length; i++)
+			buf.put(idx + i, bytes[i]);
+	}
+
+	@Override
+	void writeInt(long pos, int v) throws IOException {
+		buf.putInt(checkPos(pos, 4), v);
+	}
+
+	@Override
+	void writeLong(long pos, long v) throws IOException {
+		buf.putLong(checkPos(pos, 8), v);
+	}
+
+	@Override
+	long length() {
+		return buf.capacity();
+	}
+
+	@Override
+	void setLength(long length) throws IOException {
+		buf.force();
+		file.setLength(length);
+		map();
+	}
+
+	@Override
+	void sync() {
+		buf.force();
+	}
+
+	@Override
+	void close() throws IOException {
+		buf.force();
+		buf = null;
+		file.close();
+	}
+
+}
@@ -0,0 +1,154 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An engine that keeps its keys in memory only, in order, and loses them
+ * when the store is shut down. It writes nothing to the store's directory,
+ * which suits tests and stores that must leave nothing on disk. Lookups
+ * may run on any thread.
+ */
+class MemoryEngine implements BuiltInEngine {
+
+	// keys mapped to byte[] values, which are never modified, or Long longs
+	private final ConcurrentSkipListMap<String, Object> map =
+		new ConcurrentSkipListMap<String, Object>();
+
+	@Override
+	public void lookup(String key, boolean readValue, Entry entry) {
+		Object value = map.get(key);
+		entry.value = null;
+		if (value == null) {
+			entry.type = Entry.NONE;
+		} else if (value instanceof Long) {
+			entry.type = Entry.LONG;
+			entry.l = (Long) value;
+		} else {
+			entry.type = Entry.VALUE;
+			if (readValue)
+				entry.value = ((byte[]) value).clone();
+		}
+	}
+
+	@Override
+	public boolean lookupConcurrently(String key, boolean readValue,
+	Entry entry) {
+		lookup(key, readValue, entry);
+		return true;
+	}
+
+	@Override
+	public void logOperation(Transaction.Type type, String key, String newKey) {
+	}
+
+	@Override
+	public void put(String key, byte[] value) {
+		map.put(key, value);
+	}
+
+	@Override
+	public boolean putLong(String key, long l) {
+		if (map.get(key) instanceof byte[])
+			return false;
+		map.put(key, l);
+		return true;
+	}
+
+	@Override
+	public void remove(String key) {
+		map.remove(key);
+	}
+
+	@Override
+	public boolean move(String key, String newKey) {
+		Object value = map.get(key);
+		if (value == null || map.putIfAbsent(newKey, value) != null)
+			return false;
+		map.remove(key);
+		return true;
+	}
+
+	@Override
+	public boolean canScanKeys() {
+		return true;
+	}
+
+	@Override
+	public boolean canListKeys() {
+		return true;
+	}
+
+	@Override
+	public boolean scanKeys(String prefix, String after, int max,
+	List<String> keys) {
+		NavigableSet<String> tail = after == null
+			? map.navigableKeySet().tailSet(prefix, true)
+			: map.navigableKeySet().tailSet(after, false);
+		for (String key : tail) {
+			if (!key.startsWith(prefix))
+				return false;
+			if (key.startsWith(TransactionProcessor.VERSION_PREFIX))
+				continue;
+			if (keys.size() == max)
+				return true;
+			keys.add(key);
+		}
+		return false;
+	}
+
+	/** Values are scanned in key order, after the given key. */
+	@Override
+	public long scanValues(long position, String after, int max,
+	List<byte[]> values, List<String> keys) {
+		Map<String, Object> tail = after == null ? map : map.tailMap(after, false);
+		for (Map.Entry<String, Object> entry : tail.entrySet()) {
+			if (!(entry.getValue() instanceof byte[]))
+				continue;
+			if (values.size() == max)
+				return 0L;
+			values.add((byte[]) entry.getValue());
+			keys.add(entry.getKey());
+		}
+		return -1L;
+	}
+
+	@Override
+	public boolean hasPending() {
+		return false;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void step() {
+	}
+
+	@Override
+	public void idle() {
+	}
+
+	@Override
+	public boolean idleStep() {
+		return false;
+	}
+
+	@Override
+	public boolean canCopy() {
+		return false;
+	}
+
+	@Override
+	public Copy startCopy(File dir) {
+		throw new UnsupportedOperationException("Nothing to copy.");
+	}
+
+	@Override
+	public void close() {
+		map.clear();
+	}
+
+}
@@ -0,0 +1,480 @@
+package common.data;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import common.*;
+
+/**
+ * A map held in memory outside the Java heap, for state that need not
+ * outlive the process but is too large to keep in boxed objects on the
+ * heap. Keys are 128-bit: a UUID split into its two halves, or a string
+ * hashed like the keys of a {@link PersistentKeyValueStore}. Values are
+ * kept in their persisted form, the same as in a store.
+ *
+ * The map is divided into stripes by key, each locked on its own. A stripe
+ * has a table of rows, each a key and the address of its value, probed
+ * linearly, and slabs that hold the values: blocks divided into slots of
+ * one size class, with the free slots of each slab chained into a free
+ * list. Slots are reused by values of the same class, and a slab whose
+ * slots are all free is let go of, unless it is the only one of its class
+ * with free slots. Both are direct buffers. Safe to use from any thread.
+ */
+public class OffHeapStore<T extends Persistable> {
+
+	/** The largest value, in its persisted form, that the map holds. */
+	public static final int MAX_VALUE_SIZE = (64 << 10) - 4;
+
+	// the two halves of the key, then the address of its value
+	private static final int ROW_SIZE = 24;
+	// addresses marking rows that hold no key
+	private static final long EMPTY = 0L;
+	private static final long TOMBSTONE = -1L;
+	private static final float MAX_LOAD_FACTOR = 0.7f;
+	private static final float MAX_TOMBSTONE_FACTOR = 0.25f;
+	private static final int SLAB_SIZE = 64 << 10;
+	// slot sizes are MIN_SLOT_SIZE << class, including a 4-byte length
+	private static final int MIN_SLOT_SIZE = 16;
+	private static final int SIZE_CLASSES = 13; // up to a slot per slab
+	private static final int MIN_STRIPE_CAPACITY = 16;
+
+	// hashes string keys on the calling thread
+	private static final ThreadLocal<KeyHasher> hasher =
+		new ThreadLocal<KeyHasher>() {
+			@Override protected KeyHasher initialValue() {
+				return new KeyHasher();
+			}
+		};
+
+	private final Stripe[] stripes; // always a power of two
+
+	/**
+	 * Creates a map for up to 16 threads at once.
+	 * @see #OffHeapStore(int, int)
+	 */
+	public OffHeapStore(int initCapacity) {
+		this(initCapacity, 16);
+	}
+
+	/**
+	 * @param initCapacity the number of keys the map holds before it first
+	 *   grows
+	 * @param concurrency the number of threads expected to use the map at
+	 *   once, which is the number of stripes rounded up to a power of two
+	 */
+	public OffHeapStore(int initCapacity, int concurrency) {
+		int n = 1;
+		while (n < concurrency)
+			n <<= 1;
+		int capacity = MIN_STRIPE_CAPACITY;
+		while (capacity * MAX_LOAD_FACTOR < (float) initCapacity / n)
+			capacity <<= 1;
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe(capacity);
+	}
+
+	/**
+	 * Mixes the halves of a key into the hash that chooses its stripe and
+	 * its first row, so that keys alike in either half, such as time-based
+	 * UUIDs, are spread.
+	 */
+	private static long mix(long hi, long lo) {
+		long h = hi ^ Long.rotateLeft(lo, 32);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	private Stripe stripe(long h) {
+		return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+	}
+
+	/**
+	 * Reconstructs the value mapped to the key into the container.
+	 * @return true if a value was retrieved and the container represents
+	 *   that value
+	 */
+	public boolean get(long hi, long lo, T container) {
+		long h = mix(hi, lo);
+		byte[] bytes = stripe(h).get(hi, lo, h);
+		if (bytes == null)
+			return false;
+		try {
+			container.reconstruct(new ByteArrayInputStream(bytes));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public boolean get(UUID key, T container) {
+		return get(key.getMostSignificantBits(),
+			key.getLeastSignificantBits(), container);
+	}
+
+	public boolean get(String key, T container) {
+		KeyHasher h = hasher.get();
+		h.hash(key);
+		return get(h.hi, h.lo, container);
+	}
+
+	/**
+	 * Maps the key to the given value, in its persisted form.
+	 * @return false if the value could not be persisted, or its persisted
+	 *   form is longer than {@link #MAX_VALUE_SIZE}
+	 */
+	public boolean put(long hi, long lo, T value) {
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			value.persist(os);
+			bytes = os.toByteArray();
+		} catch (IOException e) {
+			return false;
+		}
+		if (bytes.length > MAX_VALUE_SIZE)
+			return false;
+		long h = mix(hi, lo);
+		stripe(h).put(hi, lo, h, bytes, false);
+		return true;
+	}
+
+	public boolean put(UUID key, T value) {
+		return put(key.getMostSignificantBits(),
+			key.getLeastSignificantBits(), value);
+	}
+
+	public boolean put(String key, T value) {
+		KeyHasher h = hasher.get();
+		h.hash(key);
+		return put(h.hi, h.lo, value);
+	}
+
+	/**
+	 * @return true if the key was mapped
+	 */
+	public boolean remove(long hi, long lo) {
+		long h = mix(hi, lo);
+		return stripe(h).remove(hi, lo, h) != null;
+	}
+
+	public boolean remove(UUID key) {
+		return remove(key.getMostSignificantBits(),
+			key.getLeastSignificantBits());
+	}
+
+	public boolean remove(String key) {
+		KeyHasher h = hasher.get();
+		h.hash(key);
+		return remove(h.hi, h.lo);
+	}
+
+	public boolean containsKey(long hi, long lo) {
+		long h = mix(hi, lo);
+		return stripe(h).contains(hi, lo, h);
+	}
+
+	public boolean containsKey(UUID key) {
+		return containsKey(key.getMostSignificantBits(),
+			key.getLeastSignificantBits());
+	}
+
+	public boolean containsKey(String key) {
+		KeyHasher h = hasher.get();
+		h.hash(key);
+		return containsKey(h.hi, h.lo);
+	}
+
+	/** @return the number of keys mapped */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	/** @return the number of bytes of memory the map holds off the heap */
+	public long offHeapBytes() {
+		long bytes = 0L;
+		for (Stripe stripe : stripes)
+			bytes += stripe.offHeapBytes();
+		return bytes;
+	}
+
+	/** Removes every key and lets go of the memory the map holds. */
+	public void clear() {
+		for (Stripe stripe : stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * @return the size class of the slots for values of the given length
+	 */
+	private static int sizeClass(int length) {
+		int c = 0;
+		while ((MIN_SLOT_SIZE << c) < length + 4)
+			c++;
+		return c;
+	}
+
+	/**
+	 * A block of slots of one size class. A slot holds the length of its
+	 * value, then the value, or if it is free, the offset of the next free
+	 * slot of the slab.
+	 */
+	private static final class Slab {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+		final int number;
+		final int sizeClass;
+		int used; // slots that hold a value
+		int free; // the offset of the first free slot, or -1
+		Slab prev, next; // among the slabs of the class with free slots
+
+		Slab(int number, int sizeClass) {
+			this.number = number;
+			this.sizeClass = sizeClass;
+			int slotSize = MIN_SLOT_SIZE << sizeClass;
+			// chains the slots in order of their offsets
+			free = -1;
+			for (int off = SLAB_SIZE - slotSize; off >= 0; off -= slotSize) {
+				buffer.putInt(off, free);
+				free = off;
+			}
+		}
+	}
+
+	/**
+	 * One stripe of the map. An address is the number of a slab, from 1,
+	 * in the upper half, and the offset of a slot in it in the lower half.
+	 */
+	private static final class Stripe {
+		private final int initCapacity;
+		private ByteBuffer table;
+		private int capacity; // always a power of two
+		private int size;
+		private int tombstones;
+		// by number, less one; null for the numbers of slabs let go of
+		private final List<Slab> slabs = new ArrayList<Slab>();
+		private final Deque<Integer> freeNumbers = new ArrayDeque<Integer>();
+		private int liveSlabs;
+		// the first slab of each class with free slots, or null
+		private final Slab[] partial = new Slab[SIZE_CLASSES];
+
+		Stripe(int capacity) {
+			initCapacity = capacity;
+			this.capacity = capacity;
+			table = ByteBuffer.allocateDirect(capacity * ROW_SIZE);
+		}
+
+		/**
+		 * @return the row of the key, or if it is not mapped, -1 minus the
+		 *   row to map it in
+		 */
+		private int find(long hi, long lo, long h) {
+			int mask = capacity - 1;
+			int free = -1;
+			for (int row = (int) h & mask; ; row = (row + 1) & mask) {
+				int pos = row * ROW_SIZE;
+				long addr = table.getLong(pos + 16);
+				if (addr == EMPTY)
+					return -1 - (free >= 0 ? free : row);
+				if (addr == TOMBSTONE) {
+					if (free < 0)
+						free = row;
+				} else if (table.getLong(pos) == hi
+						&& table.getLong(pos + 8) == lo) {
+					return row;
+				}
+			}
+		}
+
+		synchronized byte[] get(long hi, long lo, long h) {
+			int row = find(hi, lo, h);
+			return row < 0 ? null : read(table.getLong(row * ROW_SIZE + 16));
+		}
+
+		synchronized boolean contains(long hi, long lo, long h) {
+			return find(hi, lo, h) >= 0;
+		}
+
+		/**
+		 * Maps the key to the value, overwriting the value in place if its
+		 * slot fits the new one.
+		 * @param ifAbsent whether to leave a mapped key as it is
+		 */
+		synchronized void put(long hi, long lo, long h, byte[] value,
+		boolean ifAbsent) {
+			int row = find(hi, lo, h);
+			if (row >= 0) {
+				if (ifAbsent)
+					return;
+				int pos = row * ROW_SIZE + 16;
+				long addr = table.getLong(pos);
+				if (slab(addr).sizeClass != sizeClass(value.length)) {
+					free(addr);
+					addr = allocate(sizeClass(value.length));
+					table.putLong(pos, addr);
+				}
+				write(addr, value);
+				return;
+			}
+			if (size + tombstones + 1 > capacity * MAX_LOAD_FACTOR) {
+				resize(capacity << 1);
+				row = find(hi, lo, h);
+			}
+			row = -1 - row;
+			int pos = row * ROW_SIZE;
+			if (table.getLong(pos + 16) == TOMBSTONE)
+				tombstones--;
+			long addr = allocate(sizeClass(value.length));
+			write(addr, value);
+			table.putLong(pos, hi);
+			table.putLong(pos + 8, lo);
+			table.putLong(pos + 16, addr);
+			size++;
+		}
+
+		/**
+		 * @return the value the key was mapped to, or null if none
+		 */
+		synchronized byte[] remove(long hi, long lo, long h) {
+			int row = find(hi, lo, h);
+			if (row < 0)
+				return null;
+			int pos = row * ROW_SIZE + 16;
+			long addr = table.getLong(pos);
+			byte[] value = read(addr);
+			free(addr);
+			table.putLong(pos, TOMBSTONE);
+			size--;
+			tombstones++;
+			if (tombstones > capacity * MAX_TOMBSTONE_FACTOR)
+				resize(capacity);
+			return value;
+		}
+
+		/** Moves the live rows into a new table, dropping tombstones. */
+		private void resize(int newCapacity) {
+			ByteBuffer old = table;
+			int oldCapacity = capacity;
+			table = ByteBuffer.allocateDirect(newCapacity * ROW_SIZE);
+			capacity = newCapacity;
+			tombstones = 0;
+			for (int pos = 0; pos < oldCapacity * ROW_SIZE; pos += ROW_SIZE) {
+				long addr = old.getLong(pos + 16);
+				if (addr == EMPTY || addr == TOMBSTONE)
+					continue;
+				long hi = old.getLong(pos), lo = old.getLong(pos + 8);
+				int row = -1 - find(hi, lo, mix(hi, lo));
+				table.putLong(row * ROW_SIZE, hi);
+				table.putLong(row * ROW_SIZE + 8, lo);
+				table.putLong(row * ROW_SIZE + 16, addr);
+			}
+		}
+
+		private Slab slab(long addr) {
+			return slabs.get((int) (addr >>> 32) - 1);
+		}
+
+		/**
+		 * @return the address of a free slot of the given size class,
+		 *   taken from a slab of the class with free slots, or a new one
+		 */
+		private long allocate(int sizeClass) {
+			Slab slab = partial[sizeClass];
+			if (slab == null) {
+				Integer number = freeNumbers.poll();
+				slab = new Slab(number != null ? number : slabs.size() + 1,
+					sizeClass);
+				if (number != null)
+					slabs.set(number - 1, slab);
+				else slabs.add(slab);
+				liveSlabs++;
+				link(slab);
+			}
+			int off = slab.free;
+			slab.free = slab.buffer.getInt(off);
+			slab.used++;
+			if (slab.free < 0)
+				unlink(slab); // full
+			return ((long) slab.number << 32) | off;
+		}
+
+		/**
+		 * Chains the slot into the free list of its slab, and lets go of
+		 * the slab if it is empty and another of its class has free slots.
+		 */
+		private void free(long addr) {
+			Slab slab = slab(addr);
+			boolean full = slab.free < 0;
+			slab.buffer.putInt((int) addr, slab.free);
+			slab.free = (int) addr;
+			slab.used--;
+			if (full)
+				link(slab);
+			if (slab.used == 0 && (partial[slab.sizeClass] != slab
+					|| slab.next != null)) {
+				unlink(slab);
+				slabs.set(slab.number - 1, null);
+				freeNumbers.push(slab.number);
+				liveSlabs--;
+			}
+		}
+
+		private void link(Slab slab) {
+			slab.prev = null;
+			slab.next = partial[slab.sizeClass];
+			if (slab.next != null)
+				slab.next.prev = slab;
+			partial[slab.sizeClass] = slab;
+		}
+
+		private void unlink(Slab slab) {
+			if (slab.prev != null)
+				slab.prev.next = slab.next;
+			else partial[slab.sizeClass] = slab.next;
+			if (slab.next != null)
+				slab.next.prev = slab.prev;
+			slab.prev = slab.next = null;
+		}
+
+		private void write(long addr, byte[] value) {
+			ByteBuffer slab = slab(addr).buffer;
+			slab.putInt((int) addr, value.length);
+			slab.position((int) addr + 4);
+			slab.put(value);
+		}
+
+		private byte[] read(long addr) {
+			ByteBuffer slab = slab(addr).buffer;
+			byte[] value = new byte[slab.getInt((int) addr)];
+			slab.position((int) addr + 4);
+			slab.get(value);
+			return value;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long offHeapBytes() {
+			return (long) capacity * ROW_SIZE + (long) liveSlabs * SLAB_SIZE;
+		}
+
+		synchronized void clear() {
+			slabs.clear();
+			freeNumbers.clear();
+			liveSlabs = 0;
+			Arrays.fill(partial, null);
+			capacity = initCapacity;
+			table = ByteBuffer.allocateDirect(capacity * ROW_SIZE);
+			size = 0;
+			tombstones = 0;
+		}
+	}
+
+}
@@ -1,6 +1,9 @@
 package common.data;
 
 import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
 import common.*;
 import static common.data.Transaction.*;
 
@@ -9,11 +12,43 @@ import static common.data.Transaction.*;
  */
 public class PersistentKeyValueStore<T extends Persistable> {
 
-	private final TransactionProcessor<T> processor;
+	private static final String SHARD_DIR = ".shard.";
+
+	/**
+	 * The name of a properties file in a store's directory that chooses
+	 * the engine of a store created there, in place of the options. Its
+	 * {@code engine} property names a {@link StoreOptions.EngineType}, or a
+	 * class that implements {@link StorageEngine.Factory} and has a public
+	 * constructor without arguments. A store already persisted in the
+	 * directory keeps its engine.
+	 */
+	public static final String ENGINE_FILE = ".engine";
+
+	// runs each step of a move between shards on the processor thread
+	// that completed the step before
+	private static final Executor SAME_THREAD = new Executor() {
+		@Override public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	// one per shard; a store that is not sharded has a single processor
+	private final List<TransactionProcessor<T>> processors;
 	private boolean shuttingDown;
+	// moves between shards in progress, which flush waits for
+	private final Object moveLock = new Object();
+	private int moves;
 
 	public PersistentKeyValueStore(File backingDir, int blockSize, int initCapacity)
 	throws IOException {
+		this(backingDir, blockSize, initCapacity, new StoreOptions());
+	}
+
+	/**
+	 * @param options Tuning options; see {@link StoreOptions}.
+	 */
+	public PersistentKeyValueStore(File backingDir, int blockSize, int initCapacity,
+	StoreOptions options) throws IOException {
 		if (backingDir == null) {
 			System.out.println("backingDir is null. setting to default '.'");
 			backingDir = new File(".");
@@ -24,8 +59,88 @@ public class PersistentKeyValueStore<T extends Persistable> {
 			System.out.println("Directory failed to create. Not exiting...");
 		}
 
-		processor = new TransactionProcessor<T>(backingDir, blockSize, initCapacity);
-		processor.start();
+		processors = new ArrayList<TransactionProcessor<T>>();
+		StorageEngine.Factory factory = engineFactory(backingDir, options);
+		int shards = countShards(backingDir, options.shards);
+		for (int i = 0; i < shards; i++) {
+			File dir = backingDir;
+			if (shards > 1) {
+				dir = new File(backingDir, SHARD_DIR + i);
+				if (!dir.isDirectory() && !dir.mkdir())
+					throw new IOException("Could not create " + dir);
+			}
+			processors.add(new TransactionProcessor<T>(dir, blockSize,
+				initCapacity, options, factory));
+		}
+		for (TransactionProcessor<T> processor : processors)
+			processor.start();
+	}
+
+	/**
+	 * @return the factory of the engine named by the engine file of the
+	 *   given directory, if any, or else by the options
+	 */
+	private static StorageEngine.Factory engineFactory(File backingDir,
+	StoreOptions options) throws IOException {
+		File file = new File(backingDir, ENGINE_FILE);
+		if (!file.exists()) {
+			return options.engineFactory != null ? options.engineFactory
+				: TransactionProcessor.factoryOf(options.engine);
+		}
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		String name = properties.getProperty("engine", "").trim();
+		for (StoreOptions.EngineType type : StoreOptions.EngineType.values()) {
+			if (type.name().equals(name))
+				return TransactionProcessor.factoryOf(type);
+		}
+		try {
+			return (StorageEngine.Factory) Class.forName(name)
+				.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unknown engine " + name + " in " + file, e);
+		} catch (ClassCastException e) {
+			throw new IOException("Not an engine factory: " + name + " in " + file, e);
+		}
+	}
+
+	/**
+	 * @return the number of shards of the store persisted in the given
+	 *   directory, or the given number if there is none yet
+	 */
+	private static int countShards(File backingDir, int shards) {
+		int existing = 0;
+		while (new File(backingDir, SHARD_DIR + existing).isDirectory())
+			existing++;
+		if (existing > 0)
+			return existing;
+		if (TransactionProcessor.hasStore(backingDir))
+			return 1; // a store that is not sharded
+		return Math.max(shards, 1);
+	}
+
+	/**
+	 * @return the built-in engine of the store persisted in the given
+	 *   directory, or null if there is none, or it has an engine of another
+	 *   party; for choosing options that only apply to one engine
+	 */
+	public static StoreOptions.EngineType engineOf(File backingDir) {
+		File shard = new File(backingDir, SHARD_DIR + 0);
+		return TransactionProcessor.engineOf(shard.isDirectory() ? shard
+			: backingDir);
+	}
+
+	private TransactionProcessor<T> processor(String key) {
+		if (processors.size() == 1)
+			return processors.get(0);
+		int h = key.hashCode();
+		h ^= h >>> 16; // spread the high bits, which short keys barely vary
+		return processors.get((h & 0x7fffffff) % processors.size());
 	}
 
 	private static boolean checkDirOrCreate(File directory) {
@@ -46,8 +161,15 @@ public class PersistentKeyValueStore<T extends Persistable> {
 	}
 
 	private void putTxn(Transaction<T> txn) {
+		putTxn(processor(txn.key), txn);
+	}
+
+	private void putTxn(TransactionProcessor<T> processor, Transaction<T> txn) {
 		try {
-			processor.putTransaction(txn);
+			if (!processor.putTransaction(txn)) { // no room in the queue
+				txn.succeeded = false;
+				txn.setCompleted();
+			}
 		} catch (InterruptedException e) {
 			txn.succeeded = false;
 			txn.setCompleted();
@@ -92,15 +214,133 @@ public class PersistentKeyValueStore<T extends Persistable> {
 	}
 
 	/**
-	 * Asynchronously re-maps the value associated with a given key to a new key.
+	 * Asynchronously reads the long value mapped to the given key, which
+	 * the completed transaction yields by {@link Transaction#longValue}.
+	 */
+	public Transaction<T> getLongAsync(String key) {
+		if (shuttingDown) return null;
+		Transaction<T> txn = new Transaction<T>(key);
+		readTxn(txn);
+		return txn;
+	}
+
+	/**
+	 * Asynchronously maps the given key to a long value.
+	 */
+	public Transaction<T> putLongAsync(String key, long value) {
+		if (shuttingDown) return null;
+		Transaction<T> txn = new Transaction<T>(key, value);
+		putTxn(txn);
+		return txn;
+	}
+
+	/**
+	 * Asynchronously re-maps the value or long associated with a given key
+	 * to a new key. If the keys belong to different shards, the move is
+	 * made in steps queued one after another to each shard; see
+	 * {@link #move}.
 	 */
 	public Transaction<T> moveAsync(String key, String newKey) {
 		if (shuttingDown) return null;
 		Transaction<T> txn = new Transaction<T>(key, newKey);
-		putTxn(txn);
+		if (processor(key) == processor(newKey)) {
+			putTxn(txn);
+		} else {
+			moveBetweenShards(txn);
+		}
 		return txn;
 	}
 
+	/**
+	 * Moves a value by copying its persisted form to the shard of the new
+	 * key, then removing the old key.
+	 */
+	/**
+	 * Starts a move between keys of different shards, which reads the
+	 * value or long of the key, checks that the new key is not mapped,
+	 * puts the value or long there and removes the key. Only the read is
+	 * queued by the calling thread; each step after it is queued by the
+	 * processor thread that completed the one before.
+	 */
+	private void moveBetweenShards(final Transaction<T> move) {
+		synchronized (moveLock) {
+			moves++;
+		}
+		Transaction<T> read = new Transaction<T>(move.key, (byte[]) null);
+		boolean queued;
+		try {
+			queued = processor(move.key).putTransaction(read);
+		} catch (InterruptedException e) {
+			queued = false;
+		}
+		if (!queued) {
+			completeMove(move, false);
+			return;
+		}
+		read.bind(new Transaction.Event<T>() {
+			// the GETB of the value or GETL of the long read from the key
+			private Transaction<T> read;
+
+			@Override
+			public void process(Transaction<T> step) {
+				switch (step.type) {
+				case GETB: case GETL:
+					if (step.succeeded) {
+						read = step;
+						next(new Transaction<T>(move.newKey, Type.EXISTS));
+					} else if (step.type == Type.GETB) {
+						next(new Transaction<T>(move.key)); // a long, maybe
+					} else {
+						completeMove(move, false);
+					}
+					break;
+				case EXISTS:
+					if (step.succeeded) // the new key is mapped
+						completeMove(move, false);
+					else if (read.type == Type.GETB)
+						next(new Transaction<T>(move.newKey, read.bytes));
+					else
+						next(new Transaction<T>(move.newKey, read.l));
+					break;
+				case PUTB: case PUTL:
+					if (step.succeeded)
+						next(new Transaction<T>(Type.DEL, move.key, null));
+					else
+						completeMove(move, false);
+					break;
+				default: // the removal of the key
+					completeMove(move, step.succeeded);
+				}
+			}
+
+			private void next(Transaction<T> step) {
+				step.bind(this, SAME_THREAD);
+				if (!processor(step.key).putFollowUp(step))
+					completeMove(move, false);
+			}
+		}, SAME_THREAD);
+	}
+
+	private void completeMove(Transaction<T> move, boolean succeeded) {
+		move.succeeded = succeeded;
+		move.setCompleted();
+		processor(move.key).postEvent(move);
+		synchronized (moveLock) {
+			if (--moves == 0)
+				moveLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Reads on the calling thread if the key's processor allows it,
+	 * otherwise queues the read transaction.
+	 */
+	private void readTxn(Transaction<T> txn) {
+		TransactionProcessor<T> processor = processor(txn.key);
+		if (!processor.tryRead(txn))
+			putTxn(processor, txn);
+	}
+
 	private boolean tryWait(Transaction<T> txn) {
 		if (txn == null) return false;
 		try {
@@ -115,19 +355,30 @@ public class PersistentKeyValueStore<T extends Persistable> {
 	 * @return true if a value was retrieved and the container represents that value
 	 */
 	public boolean get(String key, T container) {
-		return tryWait(getAsync(key, container));
+		if (shuttingDown) return false;
+		Transaction<T> txn = new Transaction<T>(Type.GET, key, container);
+		readTxn(txn);
+		return tryWait(txn);
+	}
+
+	/**
+	 * Does a synchronous get of a value in its persisted form, read whole,
+	 * without reconstructing a {@link Persistable} from it.
+	 * @return the bytes of the value, or null if none
+	 */
+	public ByteBuffer getBytes(String key) {
+		if (shuttingDown) return null;
+		Transaction<T> txn = new Transaction<T>(key, (byte[]) null);
+		readTxn(txn);
+		return tryWait(txn) ? ByteBuffer.wrap(txn.bytes) : null;
 	}
 
 	/**
 	 * @return the long value mapped to key, or -1 if none
 	 */
 	public long getLong(String key) {
-		if (shuttingDown) return -1L;
-		Transaction<T> txn = new Transaction<T>(key);
-		putTxn(txn);
-		if (tryWait(txn)) {
-			return txn.l;
-		} else return -1L;
+		Transaction<T> txn = getLongAsync(key);
+		return tryWait(txn) ? txn.longValue() : -1L;
 	}
 
 	/**
@@ -138,17 +389,107 @@ public class PersistentKeyValueStore<T extends Persistable> {
 		return tryWait(putAsync(key, container));
 	}
 
-	public boolean putLong(String key, long value) {
+	/**
+	 * Does a synchronous put of a value in its persisted form, such as one
+	 * returned by {@link #getBytes}: the remaining bytes of the given
+	 * buffer, whose position is left unchanged. The value is written whole.
+	 * @return true if the operation succeeded
+	 */
+	public boolean putBytes(String key, ByteBuffer value) {
 		if (shuttingDown) return false;
-		Transaction<T> txn = new Transaction<T>(key, value);
+		byte[] bytes = new byte[value.remaining()];
+		value.duplicate().get(bytes);
+		Transaction<T> txn = new Transaction<T>(key, bytes);
 		putTxn(txn);
 		return tryWait(txn);
 	}
 
+	public boolean putLong(String key, long value) {
+		return tryWait(putLongAsync(key, value));
+	}
+
+	/**
+	 * Asynchronously adds the given delta to the long value mapped to the
+	 * given key, or maps the key to the delta if it is not mapped. The
+	 * completed transaction yields the sum by {@link Transaction#longValue}.
+	 */
+	public Transaction<T> addAndGetAsync(String key, long delta) {
+		if (shuttingDown) return null;
+		Transaction<T> txn = new Transaction<T>(key, null, delta);
+		putTxn(txn);
+		return txn;
+	}
+
+	/**
+	 * Atomically adds the given delta to the long value mapped to the given
+	 * key, which counts from 0 if not mapped.
+	 * @return the new value, or -1 if the key is mapped to a value other
+	 *   than a long or the operation failed
+	 */
+	public long addAndGet(String key, long delta) {
+		Transaction<T> txn = addAndGetAsync(key, delta);
+		return tryWait(txn) ? txn.longValue() : -1L;
+	}
+
+	/**
+	 * Atomically increments the long value mapped to the given key.
+	 * @see #addAndGet
+	 */
+	public long incrementAndGet(String key) {
+		return addAndGet(key, 1L);
+	}
+
+	/**
+	 * @return the version stamp of the given key, which counts the writes
+	 *   to it and is 0 if it was never written, or -1 if it could not be read
+	 * @throws UnsupportedOperationException if the store keeps no version
+	 *   stamps
+	 * @see StoreOptions#versionStamps
+	 */
+	public long getVersion(String key) {
+		if (!processors.get(0).hasVersionStamps())
+			throw new UnsupportedOperationException("No version stamps.");
+		if (shuttingDown) return -1L;
+		Transaction<T> txn = new Transaction<T>(key, Type.VERSION);
+		readTxn(txn);
+		return tryWait(txn) ? txn.longValue() : -1L;
+	}
+
+	/**
+	 * Asynchronously puts the value if the version stamp of the key is the
+	 * expected one. The completed transaction yields the new version stamp
+	 * by {@link Transaction#longValue}.
+	 * @throws UnsupportedOperationException if the store keeps no version
+	 *   stamps
+	 * @see #compareAndPut
+	 */
+	public Transaction<T> compareAndPutAsync(String key, long expectedVersion,
+	T value) {
+		if (!processors.get(0).hasVersionStamps())
+			throw new UnsupportedOperationException("No version stamps.");
+		if (shuttingDown) return null;
+		Transaction<T> txn = new Transaction<T>(key, value, expectedVersion);
+		putTxn(txn);
+		return txn;
+	}
+
+	/**
+	 * Atomically puts the value if the key was not written since its
+	 * version stamp was read by {@link #getVersion}, so that concurrent
+	 * read-modify-write cycles of a value need no lock: each rereads the
+	 * value and retries if another wrote it first.
+	 * @return true if the value was put
+	 * @throws UnsupportedOperationException if the store keeps no version
+	 *   stamps
+	 */
+	public boolean compareAndPut(String key, long expectedVersion, T value) {
+		return tryWait(compareAndPutAsync(key, expectedVersion, value));
+	}
+
 	public boolean containsKey(String key) {
 		if (shuttingDown) return false;
 		Transaction<T> txn = new Transaction<T>(key, Transaction.Type.EXISTS);
-		putTxn(txn);
+		readTxn(txn);
 		return tryWait(txn);
 	}
 
@@ -160,16 +501,444 @@ public class PersistentKeyValueStore<T extends Persistable> {
 		return tryWait(removeAsync(key));
 	}
 
+	/**
+	 * Re-maps the value or long associated with a given key to a new key,
+	 * unless the new key is already mapped. In a sharded store, a move
+	 * between keys of different shards copies the value or long and is not
+	 * atomic: it is briefly bound to both keys, and stays so if the store
+	 * is interrupted between the copy and the removal of the old key.
+	 * @return true if the operation succeeded
+	 */
 	public boolean move(String key, String newKey) {
 		return tryWait(moveAsync(key, newKey));
 	}
 
+	/**
+	 * Asynchronously applies the writes of the batch in order, or none of
+	 * them if one would fail. Those to keys of the same shard are processed
+	 * as one transaction with one durable commit. If the keys belong to
+	 * different shards, the batch is written before this method returns;
+	 * see {@link #write}.
+	 * @return A {@link Transaction} object representing the asynchronous
+	 *  transaction, which succeeds if all the writes succeed
+	 */
+	public Transaction<T> writeAsync(WriteBatch<T> batch) {
+		if (shuttingDown) return null;
+		Map<TransactionProcessor<T>, List<Transaction<T>>> shards =
+			new LinkedHashMap<TransactionProcessor<T>, List<Transaction<T>>>();
+		for (Transaction<T> op : batch.ops) {
+			TransactionProcessor<T> processor = processor(op.key);
+			List<Transaction<T>> ops = shards.get(processor);
+			if (ops == null) {
+				ops = new ArrayList<Transaction<T>>();
+				shards.put(processor, ops);
+			}
+			ops.add(op);
+		}
+		if (shards.size() == 1) {
+			Map.Entry<TransactionProcessor<T>, List<Transaction<T>>> shard =
+				shards.entrySet().iterator().next();
+			Transaction<T> txn = new Transaction<T>(shard.getValue());
+			putTxn(shard.getKey(), txn);
+			return txn;
+		}
+		Transaction<T> txn = new Transaction<T>(batch.ops);
+		txn.succeeded = checkBatch(batch.ops);
+		if (!txn.succeeded) {
+			txn.setCompleted();
+			return txn;
+		}
+		List<Transaction<T>> txns = new ArrayList<Transaction<T>>();
+		for (Map.Entry<TransactionProcessor<T>, List<Transaction<T>>> shard
+				: shards.entrySet()) {
+			Transaction<T> shardTxn = new Transaction<T>(shard.getValue());
+			putTxn(shard.getKey(), shardTxn);
+			txns.add(shardTxn);
+		}
+		for (Transaction<T> shardTxn : txns)
+			txn.succeeded &= tryWait(shardTxn);
+		txn.setCompleted();
+		return txn;
+	}
+
+	/**
+	 * Checks, before a batch that spans shards is queued, its conditions,
+	 * and that no putLong of the batch is of a key mapped to a value once
+	 * the writes before it are applied, as each shard checks its own.
+	 * Writes to the same keys by other transactions may still come between
+	 * the check and the batch.
+	 * @return false if a condition does not hold or a putLong would fail
+	 */
+	private boolean checkBatch(List<Transaction<T>> ops) {
+		for (Transaction<T> op : ops) {
+			if (op.type == Type.GETL && getLong(op.key) != op.l)
+				return false;
+		}
+		// keys written by the batch so far, and whether to a value
+		Map<String, Boolean> values = new HashMap<String, Boolean>();
+		for (Transaction<T> op : ops) {
+			if (op.type == Type.GETL)
+				continue;
+			if (op.type != Type.PUTL) {
+				values.put(op.key, op.type != Type.DEL);
+				continue;
+			}
+			Boolean value = values.get(op.key);
+			if (value == null) {
+				Transaction<T> get = new Transaction<T>(op.key);
+				readTxn(get);
+				value = !tryWait(get) && containsKey(op.key);
+			}
+			if (value)
+				return false;
+			values.put(op.key, false);
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the writes of the batch in order, or none of them if one
+	 * would fail: the batch is checked before any write is applied, and
+	 * fails as a whole if one of its conditions does not hold, or if a
+	 * putLong is of a key mapped to a value, once the writes before it are
+	 * applied. Only an I/O error part-way through can
+	 * leave some writes applied; with the write-ahead log enabled, a crash
+	 * leaves either all or none of them applied. A batch that spans shards
+	 * is written by each shard independently and is not atomic: its
+	 * conditions and putLongs are checked before any shard applies its
+	 * writes, but a shard failing its writes, after a concurrent write to
+	 * one of its keys or an I/O error, does not stop those of the others.
+	 * @return true if all the writes succeeded, or the batch is empty
+	 */
+	public boolean write(WriteBatch<T> batch) {
+		return tryWait(writeAsync(batch));
+	}
+
+	/**
+	 * Lists the keys that start with the given prefix, in lexicographic
+	 * order. Keys are fetched from the store in batches as the iteration
+	 * proceeds; keys added or removed meanwhile may or may not be listed.
+	 * Requires the key log to be enabled in the store's options, unless the
+	 * store is log-structured.
+	 * @throws UnsupportedOperationException if the store keeps no key log
+	 * @see #canListKeys()
+	 */
+	public Iterable<String> keys(final String prefix) {
+		if (!processors.get(0).canScanKeys())
+			throw new UnsupportedOperationException("No key log.");
+		return new Iterable<String>() {
+			@Override public Iterator<String> iterator() {
+				if (processors.size() == 1) {
+					return new ScanIterator<String>(processors.get(0),
+						Type.KEYS, prefix, null);
+				}
+				List<Iterator<String>> shards = new ArrayList<Iterator<String>>();
+				for (TransactionProcessor<T> processor : processors) {
+					shards.add(new ScanIterator<String>(processor, Type.KEYS,
+						prefix, null));
+				}
+				return new MergeIterator(shards);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of reads served by the cache
+	 * @see StoreOptions#cacheEntries
+	 */
+	public long cacheHits() {
+		long hits = 0L;
+		for (TransactionProcessor<T> processor : processors)
+			hits += processor.cacheHits();
+		return hits;
+	}
+
+	/**
+	 * @return the number of reads the cache could not serve
+	 * @see StoreOptions#cacheEntries
+	 */
+	public long cacheMisses() {
+		long misses = 0L;
+		for (TransactionProcessor<T> processor : processors)
+			misses += processor.cacheMisses();
+		return misses;
+	}
+
+	/**
+	 * @return the number of transactions queued or in progress
+	 */
+	public int queuedTransactions() {
+		int queued = 0;
+		for (TransactionProcessor<T> processor : processors)
+			queued += processor.queueDepth();
+		return queued;
+	}
+
+	/**
+	 * @return the most transactions any shard had queued or in progress
+	 */
+	public int maxQueuedTransactions() {
+		int max = 0;
+		for (TransactionProcessor<T> processor : processors)
+			max = Math.max(max, processor.maxQueueDepth());
+		return max;
+	}
+
+	/**
+	 * @return the number of transactions failed for lack of room in the
+	 *   queue
+	 * @see StoreOptions#queuePolicy
+	 */
+	public long rejectedTransactions() {
+		long rejected = 0L;
+		for (TransactionProcessor<T> processor : processors)
+			rejected += processor.rejectedTransactions();
+		return rejected;
+	}
+
+	/**
+	 * @return true if {@link #keys(String)} lists every key of the store,
+	 *   i.e. the store is log-structured or keeps a key log that was
+	 *   created along with the store
+	 */
+	public boolean canListKeys() {
+		for (TransactionProcessor<T> processor : processors) {
+			if (!processor.canListKeys())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Iterates over the values of the store in no particular order,
+	 * reading each into a new container. Values are read in batches as the
+	 * iteration proceeds; values added, removed or moved meanwhile may be
+	 * missed or returned twice. Longs stored with {@link #putLong} are not
+	 * included.
+	 */
+	public Iterable<T> values(final PersistableFactory<T> factory) {
+		return new Iterable<T>() {
+			@Override public Iterator<T> iterator() {
+				return new Iterator<T>() {
+					private int shard;
+					private Iterator<T> values = shardValues(0);
+
+					private Iterator<T> shardValues(int shard) {
+						return new ScanIterator<T>(processors.get(shard),
+							Type.VALUES, null, factory);
+					}
+
+					@Override public boolean hasNext() {
+						while (!values.hasNext() && shard + 1 < processors.size())
+							values = shardValues(++shard);
+						return values.hasNext();
+					}
+
+					@Override public T next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return values.next();
+					}
+
+					@Override public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Streams the results of consecutive KEYS or VALUES scan transactions
+	 * on one shard.
+	 */
+	private class ScanIterator<E> implements Iterator<E> {
+		private final TransactionProcessor<T> processor;
+		private final Type type;
+		private final String prefix;
+		private final PersistableFactory<T> factory;
+		private List<E> batch;
+		private int next;
+		private String lastKey;
+		private long position;
+
+		ScanIterator(TransactionProcessor<T> processor, Type type, String prefix,
+		PersistableFactory<T> factory) {
+			this.processor = processor;
+			this.type = type;
+			this.prefix = prefix;
+			this.factory = factory;
+			this.batch = Collections.emptyList();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void fetch() {
+			if (shuttingDown) {
+				position = -1L;
+				return;
+			}
+			Transaction<T> txn = new Transaction<T>(type, prefix, lastKey,
+				position, factory);
+			putTxn(processor, txn);
+			if (!tryWait(txn)) {
+				position = -1L;
+				return;
+			}
+			batch = (List<E>) (type == Type.KEYS ? txn.keys : txn.values);
+			next = 0;
+			position = txn.l;
+			if (type == Type.KEYS && !batch.isEmpty())
+				lastKey = (String) batch.get(batch.size() - 1);
+			else if (type == Type.VALUES)
+				lastKey = txn.newKey;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == batch.size() && position >= 0L)
+				fetch();
+			return next < batch.size();
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return batch.get(next++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Merges the ordered key listings of all shards into one.
+	 */
+	private static class MergeIterator implements Iterator<String> {
+		private final List<Iterator<String>> shards;
+		private final String[] heads; // next key of each shard, or null
+
+		MergeIterator(List<Iterator<String>> shards) {
+			this.shards = shards;
+			heads = new String[shards.size()];
+			for (int i = 0; i < heads.length; i++)
+				advance(i);
+		}
+
+		private void advance(int shard) {
+			Iterator<String> keys = shards.get(shard);
+			heads[shard] = keys.hasNext() ? keys.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			for (String head : heads) {
+				if (head != null)
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String next() {
+			int min = -1;
+			for (int i = 0; i < heads.length; i++) {
+				if (heads[i] != null && (min < 0 || heads[i].compareTo(heads[min]) < 0))
+					min = i;
+			}
+			if (min < 0)
+				throw new NoSuchElementException();
+			String key = heads[min];
+			advance(min);
+			return key;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Copies the store into the given directory as it is when this method is
+	 * called, while the store keeps serving transactions, so that the copy
+	 * can be opened as a store of its own. The calling thread copies the
+	 * files; pages that transactions are about to modify meanwhile are
+	 * copied first by the store's processors. Requires the write-ahead log
+	 * to be enabled in the store's options, unless the store is
+	 * log-structured.
+	 * @param dir an empty or missing directory
+	 * @param bytesPerSecond the rate at which the calling thread copies,
+	 *   so that the copy does not delay transactions; 0 for no limit
+	 * @throws UnsupportedOperationException if the store keeps no
+	 *   write-ahead log or is kept in memory
+	 * @throws IOException if the copy could not be made
+	 */
+	public void snapshotTo(File dir, long bytesPerSecond)
+	throws IOException, InterruptedException {
+		if (!processors.get(0).canSnapshot())
+			throw new UnsupportedOperationException("Store cannot be copied.");
+		if (shuttingDown)
+			throw new IOException("Store is shutting down.");
+		String[] existing = dir.list();
+		if (existing != null && existing.length > 0)
+			throw new IOException(dir + " is not empty.");
+		List<File> dirs = new ArrayList<File>();
+		for (int i = 0; i < processors.size(); i++) {
+			File shardDir = processors.size() == 1
+				? dir : new File(dir, SHARD_DIR + i);
+			if (!shardDir.isDirectory() && !shardDir.mkdirs())
+				throw new IOException("Could not create " + shardDir);
+			dirs.add(shardDir);
+		}
+		// every shard starts its snapshot at the same point
+		CountDownLatch shards = new CountDownLatch(processors.size());
+		List<Transaction<T>> txns = new ArrayList<Transaction<T>>();
+		for (int i = 0; i < processors.size(); i++) {
+			Transaction<T> txn = new Transaction<T>(dirs.get(i), shards);
+			putTxn(processors.get(i), txn);
+			if (txn.isCompleted() && !txn.succeeded())
+				shards.countDown(); // rejected; do not hold up the others
+			txns.add(txn);
+		}
+		boolean started = true;
+		for (Transaction<T> txn : txns)
+			started &= tryWait(txn);
+		try {
+			if (!started)
+				throw new IOException("Could not start the snapshot.");
+			for (Transaction<T> txn : txns)
+				txn.copy.copy(bytesPerSecond);
+		} finally {
+			for (Transaction<T> txn : txns) {
+				if (txn.copy != null)
+					txn.copy.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Copies the store into the given directory as fast as possible.
+	 * @see #snapshotTo(File, long)
+	 */
+	public void snapshotTo(File dir) throws IOException, InterruptedException {
+		snapshotTo(dir, 0L);
+	}
+
 	/**
 	 * Block the calling thread until all pending
-	 * asynchronous transactions have been persisted.
+	 * asynchronous transactions have been persisted, including the moves
+	 * between shards in progress.
 	 */
 	public void flush() throws InterruptedException {
-		processor.waitCompleted();
+		synchronized (moveLock) {
+			while (moves > 0)
+				moveLock.wait();
+		}
+		for (TransactionProcessor<T> processor : processors)
+			processor.waitCompleted();
 	}
 
 	/**
@@ -178,7 +947,8 @@ public class PersistentKeyValueStore<T extends Persistable> {
 	 */
 	public void shutdown() throws InterruptedException {
 		shuttingDown = true;
-		processor.shutdown();
+		for (TransactionProcessor<T> processor : processors)
+			processor.shutdown();
 	}
 
 }
@@ -0,0 +1,64 @@
+package common.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Reads a file at absolute positions from any thread. Reads go through a
+ * read-only channel of their own, since an interrupt during a channel read
+ * closes the channel: a reader interrupted here cannot close the file the
+ * store's processor writes through, and the channel is reopened on the
+ * next read. The channel is opened along with the reader, while the file
+ * is known to be the one the processor writes; the owner closes the
+ * reader before it renames or deletes the file, so that a reopened
+ * channel is never of another file at the same path.
+ */
+class PositionalReader {
+
+	private final File file;
+	private volatile FileChannel channel;
+	private boolean closed;
+
+	PositionalReader(File file) throws IOException {
+		this.file = file;
+		channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	private FileChannel channel() throws IOException {
+		FileChannel ch = channel;
+		if (ch != null && ch.isOpen())
+			return ch;
+		synchronized (this) {
+			if (closed)
+				throw new ClosedChannelException();
+			if (channel == null || !channel.isOpen())
+				channel = new RandomAccessFile(file, "r").getChannel();
+			return channel;
+		}
+	}
+
+	/**
+	 * Fills the given range of the array with the bytes starting at the
+	 * given position of the file.
+	 */
+	void read(long pos, byte[] bytes, int off, int len) throws IOException {
+		FileChannel ch = channel();
+		ByteBuffer buf = ByteBuffer.wrap(bytes, off, len);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + (buf.position() - off)) < 0)
+				throw new EOFException();
+		}
+	}
+
+	long size() throws IOException {
+		return channel().size();
+	}
+
+	synchronized void close() throws IOException {
+		closed = true;
+		if (channel != null)
+			channel.close();
+	}
+
+}
@@ -0,0 +1,100 @@
+package common.data;
+
+import java.io.*;
+
+/**
+ * An index file accessed by seeking and reading a {@link RandomAccessFile}.
+ * Ints and longs go through a scratch buffer so that each costs a single
+ * read or write call.
+ */
+class RandomAccessIndexFile extends IndexFile {
+
+	private final RandomAccessFile file;
+	private final PositionalReader reader;
+	private final byte[] scratch;
+
+	RandomAccessIndexFile(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		reader = new PositionalReader(file);
+		scratch = new byte[8];
+	}
+
+	@Override
+	int read(long pos) throws IOException {
+		file.seek(pos);
+		return file.read();
+	}
+
+	@Override
+	void read(long pos, byte[] bytes) throws IOException {
+		file.seek(pos);
+		file.readFully(bytes);
+	}
+
+	@Override
+	void readConcurrently(long pos, byte[] bytes) throws IOException {
+		reader.read(pos, bytes, 0, bytes.length);
+	}
+
+	@Override
+	int readInt(long pos) throws IOException {
+		file.seek(pos);
+		file.readFully(scratch, 0, 4);
+		return (int) (KeyHasher.getLong(scratch, 0) >> 32);
+	}
+
+	@Override
+	long readLong(long pos) throws IOException {
+		file.seek(pos);
+		file.readFully(scratch);
+		return KeyHasher.getLong(scratch, 0);
+	}
+
+	@Override
+	void write(long pos, int b) throws IOException {
+		file.seek(pos);
+		file.write(b);
+	}
+
+	@Override
+	void write(long pos, byte[] bytes) throws IOException {
+		file.seek(pos);
+		file.write(bytes);
+	}
+
+	@Override
+	void writeInt(long pos, int v) throws IOException {
+		KeyHasher.putLong(scratch, 0, (long) v << 32);
+		file.seek(pos);
+		file.write(scratch, 0, 4);
+	}
+
+	@Override
+	void writeLong(long pos, long v) throws IOException {
+		KeyHasher.putLong(scratch, 0, v);
+		file.seek(pos);
+		file.write(scratch);
+	}
+
+	@Override
+	long length() throws IOException {
+		return file.length();
+	}
+
+	@Override
+	void setLength(long length) throws IOException {
+		file.setLength(length);
+	}
+
+	@Override
+	void sync() throws IOException {
+		file.getFD().sync();
+	}
+
+	@Override
+	void close() throws IOException {
+		reader.close();
+		file.close();
+	}
+
+}
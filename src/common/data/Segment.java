@@ -0,0 +1,313 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An immutable file of entries sorted by key, written at once by a
+ * {@link LogStructuredEngine} when it flushes its memtable or merges
+ * segments. Entries map a key to a value, to a long, or to a tombstone
+ * that hides the key's entries in older segments. Every
+ * {@link #INDEX_INTERVAL}th key is indexed in memory, and a Bloom filter
+ * of the keys skips most lookups of keys the segment does not have.
+ *
+ * The file holds the entries, then the index and the Bloom filter, and a
+ * footer locating them. Only the processor thread reads segments.
+ */
+class Segment {
+
+	static final byte VALUE = 1;
+	static final byte LONG = 2;
+	static final byte TOMBSTONE = 3;
+
+	private static final int INDEX_INTERVAL = 16;
+	private static final int MAGIC = 0x5365676d;
+	private static final int FOOTER_SIZE = 16;
+
+	/**
+	 * Entries in key order. Cursors reuse their fields for every entry,
+	 * except the value, which is read anew.
+	 */
+	abstract static class Cursor {
+		String key;
+		byte type;
+		long l;
+		byte[] value;
+
+		/** @return false once past the last entry */
+		abstract boolean next() throws IOException;
+	}
+
+	final File file;
+	final long number;
+	private final RandomAccessFile raf;
+	private final String[] indexKeys;
+	private final long[] indexOffsets;
+	private final long dataEnd;
+	private final BloomFilter bloom;
+	private final int count;
+
+	/**
+	 * Opens a segment written by a {@link Writer}.
+	 */
+	Segment(File file, long number) throws IOException {
+		this.file = file;
+		this.number = number;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < FOOTER_SIZE)
+				throw new IOException("Corrupt segment " + file);
+			raf.seek(length - FOOTER_SIZE);
+			dataEnd = raf.readLong();
+			count = raf.readInt();
+			if (raf.readInt() != MAGIC || dataEnd < 0L
+					|| dataEnd > length - FOOTER_SIZE)
+				throw new IOException("Corrupt segment " + file);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				read(dataEnd, (int) (length - FOOTER_SIZE - dataEnd))));
+			int n = in.readInt();
+			indexKeys = new String[n];
+			indexOffsets = new long[n];
+			for (int i = 0; i < n; i++) {
+				indexKeys[i] = in.readUTF();
+				indexOffsets[i] = in.readLong();
+			}
+			bloom = BloomFilter.readFrom(in);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private byte[] read(long pos, int len) throws IOException {
+		byte[] bytes = new byte[len];
+		raf.seek(pos);
+		raf.readFully(bytes);
+		return bytes;
+	}
+
+	/** @return the number of entries */
+	int count() {
+		return count;
+	}
+
+	/** @return the length of the file */
+	long length() throws IOException {
+		return raf.length();
+	}
+
+	/**
+	 * @return the index of the block that holds the given key if any, or
+	 *   -1 if the key precedes the first
+	 */
+	private int blockOf(String key) {
+		int lo = 0, hi = indexKeys.length - 1, block = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (indexKeys[mid].compareTo(key) <= 0) {
+				block = mid;
+				lo = mid + 1;
+			} else hi = mid - 1;
+		}
+		return block;
+	}
+
+	private DataInputStream readBlock(int block) throws IOException {
+		long end = block + 1 < indexOffsets.length
+			? indexOffsets[block + 1] : dataEnd;
+		return new DataInputStream(new ByteArrayInputStream(
+			read(indexOffsets[block], (int) (end - indexOffsets[block]))));
+	}
+
+	/**
+	 * Reads one entry into the given cursor.
+	 */
+	private static void readEntry(DataInputStream in, Cursor c)
+	throws IOException {
+		c.key = in.readUTF();
+		c.type = in.readByte();
+		c.value = null;
+		if (c.type == VALUE) {
+			c.value = new byte[in.readInt()];
+			in.readFully(c.value);
+		} else if (c.type == LONG) {
+			c.l = in.readLong();
+		} else if (c.type != TOMBSTONE) {
+			throw new IOException("Corrupt segment.");
+		}
+	}
+
+	/**
+	 * Looks up a key, given its hash.
+	 * @return false if the segment has no entry for the key; otherwise the
+	 *   entry is given, as not mapped for a tombstone
+	 */
+	boolean lookup(String key, long hi, long lo, StorageEngine.Entry entry)
+	throws IOException {
+		if (!bloom.mightContain(hi, lo))
+			return false;
+		int block = blockOf(key);
+		if (block < 0)
+			return false;
+		DataInputStream in = readBlock(block);
+		Cursor c = new Cursor() {
+			@Override boolean next() { return false; }
+		};
+		while (in.available() > 0) {
+			readEntry(in, c);
+			int cmp = c.key.compareTo(key);
+			if (cmp > 0)
+				return false;
+			if (cmp == 0) {
+				entry.type = c.type == VALUE ? StorageEngine.Entry.VALUE
+					: c.type == LONG ? StorageEngine.Entry.LONG : StorageEngine.Entry.NONE;
+				entry.l = c.l;
+				entry.value = c.value;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param from the key to start from, or null to start with the first
+	 * @param inclusive whether to include the entry of the key to start from
+	 * @return a cursor over the entries from the given key on, positioned
+	 *   before the first
+	 */
+	Cursor cursor(final String from, final boolean inclusive) {
+		final int first = from == null ? 0 : Math.max(blockOf(from), 0);
+		return new Cursor() {
+			private int block = first - 1;
+			private DataInputStream in;
+			private boolean started = from == null;
+
+			@Override boolean next() throws IOException {
+				for (;;) {
+					while (in == null || in.available() == 0) {
+						if (++block >= indexOffsets.length)
+							return false;
+						in = readBlock(block);
+					}
+					readEntry(in, this);
+					if (!started) {
+						int cmp = key.compareTo(from);
+						if (cmp < 0 || cmp == 0 && !inclusive)
+							continue;
+						started = true;
+					}
+					return true;
+				}
+			}
+		};
+	}
+
+	void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Writes the entries of a new segment, which must be added in key
+	 * order, and forces the file to the storage device once finished.
+	 */
+	static class Writer {
+		private final File file;
+		private final FileOutputStream fos;
+		private final CountingOutputStream counter;
+		private final DataOutputStream out;
+		private final List<String> indexKeys = new ArrayList<String>();
+		private final List<Long> indexOffsets = new ArrayList<Long>();
+		private final BloomFilter bloom;
+		private final KeyHasher hasher;
+		private int count;
+
+		/**
+		 * @param expectedKeys the number of entries the Bloom filter is
+		 *   sized for
+		 */
+		Writer(File file, int expectedKeys, KeyHasher hasher) throws IOException {
+			this.file = file;
+			this.hasher = hasher;
+			bloom = new BloomFilter(Math.max(expectedKeys, 1));
+			fos = new FileOutputStream(file);
+			counter = new CountingOutputStream(
+				new BufferedOutputStream(fos, 64 << 10));
+			out = new DataOutputStream(counter);
+		}
+
+		void add(String key, byte type, long l, byte[] value)
+		throws IOException {
+			if (count % INDEX_INTERVAL == 0) {
+				indexKeys.add(key);
+				indexOffsets.add(counter.count);
+			}
+			out.writeUTF(key);
+			out.writeByte(type);
+			if (type == VALUE) {
+				out.writeInt(value.length);
+				out.write(value);
+			} else if (type == LONG) {
+				out.writeLong(l);
+			}
+			hasher.hash(key);
+			bloom.add(hasher.hi, hasher.lo);
+			count++;
+		}
+
+		/** @return the number of entries added */
+		int count() {
+			return count;
+		}
+
+		/**
+		 * Writes the index, the Bloom filter and the footer, and forces the
+		 * file to the storage device.
+		 */
+		void finish() throws IOException {
+			long dataEnd = counter.count;
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeUTF(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+			}
+			bloom.writeTo(out);
+			out.writeLong(dataEnd);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+		}
+
+		/** Closes and deletes the file, unfinished. */
+		void abandon() {
+			try {
+				out.close();
+			} catch (IOException ignore) { }
+			file.delete();
+		}
+	}
+
+	/** Counts the bytes written, unlike a DataOutputStream past 2GB. */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
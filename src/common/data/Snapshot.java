@@ -0,0 +1,191 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A point-in-time copy of the files of one store, made while the store
+ * keeps serving transactions. The thread that requested the snapshot
+ * copies the files page by page; meanwhile, the write-ahead log has each
+ * page that is not yet copied copied before it is written over, so that
+ * the copy shows the files as of the commit at which the snapshot started.
+ * Files that grow meanwhile are copied up to their length at that point.
+ */
+class Snapshot {
+
+	private static final int PAGE_SIZE = 64 << 10;
+
+	private final RandomAccessFile[] sources; // null for a missing file
+	private final RandomAccessFile[] copies;
+	private final long[] lengths;
+	private final BitSet[] copied;
+	private boolean closed; // once copied or abandoned
+	private IOException failure;
+
+	/**
+	 * Starts a snapshot of the given files as they are now.
+	 * @param dir the directory to copy the files into
+	 */
+	Snapshot(File[] files, File dir) throws IOException {
+		sources = new RandomAccessFile[files.length];
+		copies = new RandomAccessFile[files.length];
+		lengths = new long[files.length];
+		copied = new BitSet[files.length];
+		try {
+			for (int i = 0; i < files.length; i++) {
+				copied[i] = new BitSet();
+				if (!files[i].exists())
+					continue;
+				sources[i] = new RandomAccessFile(files[i], "r");
+				lengths[i] = sources[i].length();
+				copies[i] = new RandomAccessFile(
+					new File(dir, files[i].getName()), "rw");
+				copies[i].setLength(lengths[i]);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private int pages(int file) {
+		return (int) ((lengths[file] + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	/**
+	 * Copies the page unless it was copied already. On failure, the
+	 * snapshot is abandoned, and the copying thread fails with the error.
+	 */
+	private synchronized void copyPage(int file, int page, byte[] buf) {
+		if (isCopied(file, page))
+			return;
+		try {
+			long pos = (long) page * PAGE_SIZE;
+			int len = (int) Math.min(PAGE_SIZE, lengths[file] - pos);
+			sources[file].seek(pos);
+			sources[file].readFully(buf, 0, len);
+			copies[file].seek(pos);
+			copies[file].write(buf, 0, len);
+			copied[file].set(page);
+		} catch (IOException e) {
+			failure = e;
+			abandon();
+		}
+	}
+
+	/**
+	 * Copies the pages of a range of a file that is about to be written,
+	 * unless they were copied already.
+	 */
+	void beforeWrite(int file, long pos, int len) {
+		if (sources[file] == null || pos >= lengths[file])
+			return;
+		int last = (int) ((Math.min(pos + len, lengths[file]) - 1) / PAGE_SIZE);
+		byte[] buf = null;
+		for (int page = (int) (pos / PAGE_SIZE); page <= last; page++) {
+			if (isCopied(file, page))
+				continue;
+			if (buf == null)
+				buf = new byte[PAGE_SIZE];
+			copyPage(file, page, buf);
+		}
+	}
+
+	/**
+	 * @return true if the page needs no copying, because it was copied or
+	 *   the snapshot is over
+	 */
+	private synchronized boolean isCopied(int file, int page) {
+		return closed || copied[file].get(page);
+	}
+
+	/**
+	 * Copies all pages not yet copied at once, before the files are
+	 * restructured.
+	 */
+	void finish() {
+		byte[] buf = new byte[PAGE_SIZE];
+		for (int file = 0; file < sources.length; file++) {
+			for (int page = 0; page < pages(file); page++)
+				copyPage(file, page, buf);
+		}
+	}
+
+	/**
+	 * Copies the files, then forces the copies to the storage device.
+	 * @param bytesPerSecond the rate the copying thread is held to, so
+	 *   that it does not take the disk from the store; 0 for no limit
+	 * @throws IOException if the files could not be copied
+	 */
+	void copy(long bytesPerSecond) throws IOException, InterruptedException {
+		byte[] buf = new byte[PAGE_SIZE];
+		long start = System.nanoTime();
+		long bytes = 0L;
+		try {
+			for (int file = 0; file < sources.length; file++) {
+				for (int page = 0; page < pages(file); page++) {
+					if (isCopied(file, page))
+						continue;
+					copyPage(file, page, buf);
+					bytes += PAGE_SIZE;
+					pace(start, bytes, bytesPerSecond);
+				}
+			}
+			synchronized (this) {
+				if (failure != null)
+					throw failure;
+				for (RandomAccessFile copy : copies) {
+					if (copy != null)
+						copy.getFD().sync();
+				}
+			}
+		} finally {
+			abandon();
+		}
+	}
+
+	/**
+	 * Holds a copying thread to the given rate.
+	 * @param start the {@link System#nanoTime} at which copying started
+	 * @param bytes the number of bytes copied since
+	 * @param bytesPerSecond the rate; 0 for no limit
+	 */
+	static void pace(long start, long bytes, long bytesPerSecond)
+	throws InterruptedException {
+		if (bytesPerSecond <= 0L)
+			return;
+		long due = start + (long) (bytes * 1e9 / bytesPerSecond);
+		long wait = due - System.nanoTime();
+		if (wait > 0L)
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+	}
+
+	/**
+	 * Stops copying, leaving the copy incomplete unless it was completed.
+	 */
+	synchronized void abandon() {
+		if (!closed) {
+			closed = true;
+			close();
+		}
+	}
+
+	/**
+	 * @return true once the snapshot no longer needs pages copied
+	 */
+	synchronized boolean isComplete() {
+		return closed;
+	}
+
+	private void close() {
+		for (int i = 0; i < sources.length; i++) {
+			try {
+				if (sources[i] != null)
+					sources[i].close();
+				if (copies[i] != null)
+					copies[i].close();
+			} catch (IOException ignore) { }
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package common.data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The storage of one shard of a {@link PersistentKeyValueStore}, which
+ * maps keys to values in their persisted form or to longs. The store
+ * queues, batches and caches transactions, and applies them through its
+ * engine; only the shard's processor thread calls an engine. Writes become
+ * durable once flushed. Keys that start with a NUL character belong to the
+ * store itself and are never listed.
+ *
+ * The engine of a store created anew is chosen by
+ * {@link StoreOptions#engine} or {@link StoreOptions#engineFactory}, or by
+ * the engine file of the store's directory; see
+ * {@link PersistentKeyValueStore#ENGINE_FILE}.
+ */
+public interface StorageEngine {
+
+	/** Opens the engines of the shards of stores. */
+	public static interface Factory {
+		/**
+		 * Opens the engine of the store in the given directory, or creates
+		 * one if there is none.
+		 * @param blockSize the block size the store was opened with
+		 * @param initCapacity the initial capacity the store was opened with
+		 */
+		public StorageEngine open(File dir, int blockSize, int initCapacity,
+		StoreOptions options) throws IOException;
+	}
+
+	/** The mapping of a key, as found by a lookup. */
+	public static final class Entry {
+		public static final int NONE = 0;
+		public static final int VALUE = 1;
+		public static final int LONG = 2;
+
+		public int type;
+		public long l; // a LONG entry's long
+		// a VALUE entry's value, if it was read, which the caller may keep
+		public byte[] value;
+	}
+
+	/**
+	 * Looks up the given key, for gets and for checks that it exists.
+	 * @param readValue whether to read the value of a VALUE entry
+	 */
+	public void lookup(String key, boolean readValue, Entry entry)
+	throws IOException;
+
+	public void put(String key, byte[] value) throws IOException;
+
+	/** @return false if the key is mapped to a value, not a long */
+	public boolean putLong(String key, long l) throws IOException;
+
+	public void remove(String key) throws IOException;
+
+	/**
+	 * Re-maps the value or long of a key to a new key.
+	 * @return false if the key is not mapped or the new key is
+	 */
+	public boolean move(String key, String newKey) throws IOException;
+
+	/**
+	 * Adds to the given list, in order, up to max keys that start with the
+	 * given prefix and follow the given key, except the store's own.
+	 * @param after the last key of the previous batch, or null to start
+	 *   with the first key with the prefix
+	 * @return true if there may be more keys with the prefix
+	 */
+	public boolean scanKeys(String prefix, String after, int max,
+	List<String> keys) throws IOException;
+
+	/** Makes the writes applied since the last flush durable. */
+	public void flush() throws IOException;
+
+	public void close() throws IOException;
+
+}
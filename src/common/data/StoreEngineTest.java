@@ -0,0 +1,467 @@
+package common.data;
+
+import java.io.*;
+import java.math.*;
+import java.security.*;
+import java.util.*;
+
+import common.*;
+import common.data.KVStoreTest.Foo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Checks each engine of {@link PersistentKeyValueStore}: puts, gets,
+ * removes, moves and batches, then the same keys once the store is
+ * reopened; and the migration of a hash index written by the format before
+ * capacities were powers of two. Prints each failed check, and exits with
+ * status 1 if there were any.
+ */
+public class StoreEngineTest {
+
+	private static final File ROOT = new File("./StoreEngineTest/");
+	private static final int KEYS = 3000; // enough to split a small index
+	private static final int VALUES = 200;
+	private static final int MOVES = 32;
+
+	private static final PersistableFactory<Foo> FOOS =
+		new PersistableFactory<Foo>() {
+			@Override
+			public Foo newT() {
+				return new Foo(null, null);
+			}
+		};
+
+	private static int failures;
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			failures++;
+			System.out.println("  FAILED: " + what);
+		}
+	}
+
+	private static PersistentKeyValueStore<Foo> open(File dir,
+	StoreOptions options) throws IOException {
+		return new PersistentKeyValueStore<Foo>(dir, 64, 4, options);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Writes to a new store with the given options, checks it, then
+	 * reopens it and checks it again if it persists its keys.
+	 */
+	private static void checkEngine(String name, StoreOptions options,
+	boolean persistent) throws IOException, InterruptedException {
+		System.out.println("Checking " + name);
+		File dir = new File(ROOT, name);
+		delete(dir);
+		PersistentKeyValueStore<Foo> store = open(dir, options);
+		Foo foo = new Foo(null, null);
+
+		check("put", store.put("foo1", new Foo("hello", "world")));
+		check("put", store.put("foo2", new Foo("CS 5430", "SAND and SOTRC")));
+		check("putLong", store.putLong("n1", 42L));
+		check("get", store.get("foo1", foo)
+			&& "a=hello; b=world".equals(foo.toString()));
+		check("getLong", store.getLong("n1") == 42L);
+		check("putLong of a value", !store.putLong("foo1", 1L));
+		check("move", store.move("foo2", "foo3"));
+		check("move onto a mapped key", !store.move("foo3", "foo1"));
+		check("move of an unmapped key", !store.move("foo2", "foo4"));
+		check("remove", store.remove("foo1"));
+
+		WriteBatch<Foo> batch = new WriteBatch<Foo>()
+			.put("bA", new Foo("batch", "A"))
+			.putLong("foo3", 1L); // fails, so bA must not be put either
+		check("failed batch", !store.write(batch));
+		batch = new WriteBatch<Foo>()
+			.put("bB", new Foo("batch", "B"))
+			.putLong("n2", 7L)
+			.remove("n1");
+		check("batch", store.write(batch));
+		batch = new WriteBatch<Foo>()
+			.ifLong("n2", 8L)
+			.put("bC", new Foo("batch", "C"))
+			.putLong("n2", 9L);
+		check("failed conditional batch", !store.write(batch)
+			&& !store.containsKey("bC") && store.getLong("n2") == 7L);
+		batch = new WriteBatch<Foo>()
+			.ifLong("n2", 7L)
+			.ifLong("n1", -1L)
+			.put("bC", new Foo("batch", "C"))
+			.putLong("n2", 9L);
+		check("conditional batch", store.write(batch)
+			&& store.containsKey("bC") && store.getLong("n2") == 9L);
+
+		for (int i = 0; i < KEYS; i++)
+			store.putLongAsync("k" + i, i);
+		for (int i = 0; i < VALUES; i++)
+			store.putAsync("v" + i, new Foo("v" + i, "value " + i));
+		store.flush();
+		for (int i = 0; i < KEYS; i += 3)
+			store.removeAsync("k" + i);
+		for (int i = 0; i < VALUES; i += 4)
+			store.removeAsync("v" + i);
+		store.flush();
+
+		// in a sharded store, most of these cross shards
+		for (int i = 0; i < MOVES; i++) {
+			store.putLongAsync("ml" + i, i);
+			store.putAsync("mv" + i, new Foo("mv" + i, "moved"));
+		}
+		store.flush();
+		for (int i = 0; i < MOVES; i++) {
+			store.moveAsync("ml" + i, "movedl" + i);
+			store.moveAsync("mv" + i, "movedv" + i);
+		}
+		store.flush(); // waits for the moves too
+		for (int i = 0; i < MOVES; i++) {
+			check("moved long ml" + i, !store.containsKey("ml" + i)
+				&& store.getLong("movedl" + i) == i);
+			check("moved value mv" + i, !store.containsKey("mv" + i)
+				&& store.get("movedv" + i, foo)
+				&& ("a=mv" + i + "; b=moved").equals(foo.toString()));
+		}
+		for (int i = 0; i < MOVES; i++) {
+			store.removeAsync("movedl" + i);
+			store.removeAsync("movedv" + i);
+		}
+		store.flush();
+
+		if (options.versionStamps) {
+			long version = store.getVersion("foo3");
+			check("compareAndPut", store.compareAndPut("foo3", version,
+				new Foo("CS 5430", "SAND and SOTRC")));
+			check("compareAndPut of a stale version",
+				!store.compareAndPut("foo3", version, new Foo("stale", "")));
+		}
+
+		verify(store);
+		store.shutdown();
+		if (!persistent)
+			return;
+
+		store = open(dir, options);
+		verify(store);
+		check("put after reopening", store.put("foo1", new Foo("hello", "again"))
+			&& store.get("foo1", foo)
+			&& "a=hello; b=again".equals(foo.toString()));
+		store.shutdown();
+	}
+
+	/** Checks the keys written by {@link #checkEngine}. */
+	private static void verify(PersistentKeyValueStore<Foo> store) {
+		Foo foo = new Foo(null, null);
+		check("removed key", !store.containsKey("foo1") && !store.get("foo1", foo));
+		check("moved key", !store.containsKey("foo2"));
+		check("key moved to", store.get("foo3", foo)
+			&& "a=CS 5430; b=SAND and SOTRC".equals(foo.toString()));
+		check("put of a failed batch", !store.containsKey("bA"));
+		check("put of a batch", store.get("bB", foo)
+			&& "a=batch; b=B".equals(foo.toString()));
+		check("putLong of a batch", store.getLong("n2") == 9L);
+		check("remove of a batch", !store.containsKey("n1"));
+
+		int longs = 0;
+		for (int i = 0; i < KEYS; i++) {
+			if (i % 3 == 0) {
+				check("removed long k" + i, !store.containsKey("k" + i));
+			} else {
+				check("long k" + i, store.getLong("k" + i) == i);
+				longs++;
+			}
+		}
+		int values = 3; // foo3, bB and bC
+		for (int i = 0; i < VALUES; i++) {
+			if (i % 4 == 0) {
+				check("removed value v" + i, !store.get("v" + i, foo));
+			} else {
+				check("value v" + i, store.get("v" + i, foo)
+					&& ("a=v" + i + "; b=value " + i).equals(foo.toString()));
+				values++;
+			}
+		}
+
+		int scanned = 0;
+		for (Foo value : store.values(FOOS))
+			scanned++;
+		check("values: " + scanned + " of " + values, scanned == values);
+		if (store.canListKeys()) {
+			int keys = 0;
+			for (String key : store.keys("k"))
+				keys++;
+			check("keys: " + keys + " of " + longs, keys == longs);
+		}
+	}
+
+	/**
+	 * An engine of another party, which keeps its keys in memory and only
+	 * implements the operations of {@link StorageEngine}.
+	 */
+	static class MapEngine implements StorageEngine {
+		private final TreeMap<String, Object> map = new TreeMap<String, Object>();
+
+		@Override
+		public void lookup(String key, boolean readValue, Entry entry) {
+			Object o = map.get(key);
+			if (o == null) {
+				entry.type = Entry.NONE;
+			} else if (o instanceof Long) {
+				entry.type = Entry.LONG;
+				entry.l = (Long) o;
+			} else {
+				entry.type = Entry.VALUE;
+				entry.value = readValue ? ((byte[]) o).clone() : null;
+			}
+		}
+
+		@Override
+		public void put(String key, byte[] value) {
+			map.put(key, value.clone());
+		}
+
+		@Override
+		public boolean putLong(String key, long l) {
+			if (map.get(key) instanceof byte[])
+				return false;
+			map.put(key, l);
+			return true;
+		}
+
+		@Override
+		public void remove(String key) {
+			map.remove(key);
+		}
+
+		@Override
+		public boolean move(String key, String newKey) {
+			if (!map.containsKey(key) || map.containsKey(newKey))
+				return false;
+			map.put(newKey, map.remove(key));
+			return true;
+		}
+
+		@Override
+		public boolean scanKeys(String prefix, String after, int max,
+		List<String> keys) {
+			SortedMap<String, Object> tail = after == null
+				? map.tailMap(prefix) : map.tailMap(after + "\u0000");
+			int added = 0;
+			for (String key : tail.keySet()) {
+				if (!key.startsWith(prefix))
+					return false;
+				if (key.startsWith("\u0000"))
+					continue; // the store's own
+				if (added == max)
+					return true;
+				keys.add(key);
+				added++;
+			}
+			return false;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Checks that writes to a store with a write-ahead log that fail or
+	 * change nothing add nothing to the log.
+	 */
+	private static void checkLogging() throws IOException, InterruptedException {
+		System.out.println("Checking WAL");
+		File dir = new File(ROOT, "WAL");
+		delete(dir);
+		StoreOptions options = new StoreOptions();
+		options.writeAheadLog = true;
+		options.versionStamps = true;
+		// too large to split, and nothing freed to compact
+		PersistentKeyValueStore<Foo> store =
+			new PersistentKeyValueStore<Foo>(dir, 64, 64, options);
+		check("put", store.put("foo1", new Foo("hello", "world")));
+		check("putLong", store.putLong("n1", 1L));
+		File log = new File(dir, WriteAheadLog.LOG_FILE);
+		long length = log.length();
+		check("putLong of a value", !store.putLong("foo1", 1L));
+		check("move of an unmapped key", !store.move("foo2", "foo3"));
+		check("move onto a mapped key", !store.move("foo1", "n1"));
+		check("compareAndPut of a stale version",
+			!store.compareAndPut("foo1", 0L, new Foo("stale", "")));
+		long version = store.getVersion("foo2");
+		store.remove("foo2");
+		check("failed writes logged", log.length() == length);
+		check("removal of an unmapped key stamped",
+			store.getVersion("foo2") == version);
+		check("putLong", store.putLong("n1", 2L) && log.length() > length);
+		store.shutdown();
+	}
+
+	/** @return the row of a legacy index that the given key hashes to */
+	private static int legacySlot(String key, int capacity) {
+		return new BigInteger(legacyHash(key))
+			.mod(BigInteger.valueOf(capacity)).intValue();
+	}
+
+	private static byte[] legacyHash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256")
+				.digest(key.getBytes(UTF_8));
+			return Arrays.copyOfRange(digest, 16, 32);
+		} catch (NoSuchAlgorithmException impossible) {
+			throw new IllegalStateException(impossible);
+		}
+	}
+
+	private static void writeLegacyRow(RandomAccessFile index, int row,
+	String key, long l) throws IOException {
+		index.seek(12L + row * (long) HashIndex.ROW_SIZE);
+		index.write(HashIndex.LONG);
+		index.write(legacyHash(key));
+		index.writeLong(l);
+	}
+
+	/**
+	 * Writes an index in the legacy format, as left by its deletions, and
+	 * checks that the store migrates the keys its lookups could reach, and
+	 * only those: key b was inserted behind key a, which hashes to the
+	 * same row and whose deletion emptied that row, so b was lost.
+	 */
+	private static void checkLegacyMigration()
+	throws IOException, InterruptedException {
+		System.out.println("Checking LEGACY");
+		File dir = new File(ROOT, "LEGACY");
+		delete(dir);
+		dir.mkdirs();
+
+		int capacity = 64;
+		String a = null, b = null, c = null, d = null, e = null;
+		Map<Integer, String> bySlot = new HashMap<Integer, String>();
+		for (int i = 0; b == null || e == null; i++) {
+			String key = "key" + i;
+			int slot = legacySlot(key, capacity);
+			String other = bySlot.put(slot, key);
+			if (other == null || slot > capacity - 4)
+				continue;
+			if (b == null && slot < capacity / 2) {
+				a = other;
+				b = key;
+			} else if (b != null && slot > legacySlot(a, capacity) + 1) {
+				d = other;
+				e = key;
+			}
+		}
+		for (int i = 0; c == null; i++) {
+			String key = "other" + i;
+			int slot = legacySlot(key, capacity);
+			if (slot > legacySlot(a, capacity) + 1 && slot < capacity - 1
+			&& slot != legacySlot(d, capacity)
+			&& slot != legacySlot(d, capacity) + 1)
+				c = key;
+		}
+
+		RandomAccessFile index = new RandomAccessFile(
+			new File(dir, HashIndex.INDEX_TWO_FILE), "rw");
+		try {
+			index.setLength(12L + capacity * (long) HashIndex.ROW_SIZE);
+			index.writeInt(12); // header size
+			index.writeInt(4); // rows, though b's is unreachable
+			index.writeInt(capacity);
+			// a's row, the first of its probe sequence, was emptied
+			writeLegacyRow(index, legacySlot(a, capacity) + 1, b, 2L);
+			writeLegacyRow(index, legacySlot(c, capacity), c, 3L);
+			writeLegacyRow(index, legacySlot(d, capacity), d, 4L);
+			writeLegacyRow(index, legacySlot(d, capacity) + 1, e, 5L);
+		} finally {
+			index.close();
+		}
+
+		PersistentKeyValueStore<Foo> store = open(dir, new StoreOptions());
+		verifyLegacy(store, a, b, c, d, e);
+		check("putLong after migrating", store.putLong(b, 6L)
+			&& store.getLong(b) == 6L);
+		store.shutdown();
+
+		store = open(dir, new StoreOptions());
+		verifyLegacy(store, a, b, c, d, e);
+		check("put after migrating", store.getLong(b) == 6L);
+		store.shutdown();
+		check("index1 removed", !new File(dir, HashIndex.INDEX_ONE_FILE).exists());
+	}
+
+	private static void verifyLegacy(PersistentKeyValueStore<Foo> store,
+	String a, String b, String c, String d, String e) {
+		check("deleted legacy key", !store.containsKey(a));
+		check("unreachable legacy key", store.getLong(b) != 2L);
+		check("legacy key", store.getLong(c) == 3L);
+		check("legacy key", store.getLong(d) == 4L);
+		check("legacy key probed past another", store.getLong(e) == 5L);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		StoreOptions options = new StoreOptions();
+		checkEngine("HASH", options, true);
+
+		options = new StoreOptions();
+		options.mappedIndex = true;
+		options.bloomFilter = true;
+		options.keyLog = true;
+		options.cacheEntries = 64;
+		checkEngine("HASH-MAPPED", options, true);
+
+		options = new StoreOptions();
+		options.writeAheadLog = true;
+		options.groupCommit = true;
+		options.checkpointBytes = 16L << 10;
+		options.compactionRatio = 0.2f;
+		checkEngine("HASH-WAL", options, true);
+
+		options = new StoreOptions();
+		options.shards = 4;
+		options.versionStamps = true;
+		checkEngine("HASH-SHARDED", options, true);
+
+		options = new StoreOptions();
+		options.engine = StoreOptions.EngineType.LOG_STRUCTURED;
+		options.memtableBytes = 16L << 10;
+		options.maxSegments = 2;
+		checkEngine("LOG_STRUCTURED", options, true);
+
+		options = new StoreOptions();
+		options.engine = StoreOptions.EngineType.MEMORY;
+		checkEngine("MEMORY", options, false);
+
+		options = new StoreOptions();
+		options.engineFactory = new StorageEngine.Factory() {
+			@Override
+			public StorageEngine open(File dir, int blockSize, int initCapacity,
+			StoreOptions options) {
+				return new MapEngine();
+			}
+		};
+		options.versionStamps = true;
+		checkEngine("THIRD-PARTY", options, false);
+
+		checkLogging();
+		checkLegacyMigration();
+
+		System.out.println(failures == 0 ? "All checks passed."
+			: failures + " checks failed.");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+}
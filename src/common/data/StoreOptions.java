@@ -0,0 +1,192 @@
+package common.data;
+
+/**
+ * Tuning options for a {@link PersistentKeyValueStore}.
+ * A freshly constructed StoreOptions describes a store that behaves exactly
+ * like one created without options.
+ */
+public class StoreOptions {
+
+	/** Points at which changes to the hash index are forced to disk. */
+	public static enum IndexSync {
+		/** Leave write-back entirely to the operating system. */
+		NEVER,
+		/** Force whenever the store runs out of pending transactions. */
+		ON_IDLE,
+		/** Force after every operation that modifies the index. */
+		EVERY_WRITE
+	}
+
+	/** What a thread does when it would exceed a queue limit. */
+	public static enum QueuePolicy {
+		/** Wait until a queued transaction completes. */
+		BLOCK,
+		/** Fail the new transaction right away. */
+		FAIL
+	}
+
+	/** How a store lays out its files. */
+	public static enum EngineType {
+		/**
+		 * A hash index of the keys and a data file of blocks, whose values
+		 * are written in place. The options that concern the index, the
+		 * data file, the key log and the write-ahead log apply to it.
+		 */
+		HASH,
+		/**
+		 * A memtable and commit log, flushed to sorted segment files that
+		 * are merged in the background; writes are only ever appended,
+		 * and keys are kept in order, so that they can always be listed.
+		 * The memtable and segment options apply to it.
+		 */
+		LOG_STRUCTURED,
+		/**
+		 * Keys in memory only, which are lost when the store is shut down;
+		 * nothing is written to the store's directory.
+		 */
+		MEMORY
+	}
+
+	/**
+	 * The engine of the store, if it is created anew. This option is
+	 * ignored if a persisted store already exists, or if the store's
+	 * directory names an engine of its own.
+	 * @see PersistentKeyValueStore#ENGINE_FILE
+	 */
+	public EngineType engine = EngineType.HASH;
+
+	/**
+	 * Opens an engine other than the built-in ones for a store created
+	 * anew, in place of {@link #engine}; null for the built-in ones.
+	 */
+	public StorageEngine.Factory engineFactory = null;
+
+	/**
+	 * The size in bytes the memtable of a log-structured store may reach
+	 * before it is flushed to a segment file and the commit log emptied.
+	 */
+	public long memtableBytes = 4L << 20;
+
+	/**
+	 * The number of segment files of a log-structured store beyond which
+	 * they are all merged into one.
+	 */
+	public int maxSegments = 8;
+
+	/**
+	 * Probe the hash index through a memory mapping of the index files
+	 * instead of seeking and reading them.
+	 */
+	public boolean mappedIndex = false;
+
+	/** When changes to the hash index are forced to disk. */
+	public IndexSync indexSync = IndexSync.NEVER;
+
+	/**
+	 * Commit transactions in groups. The store's processor applies a
+	 * transaction together with those queued behind it, makes all their
+	 * writes durable with a single sync of the store files, and only then
+	 * completes them. Without group commit, every write to the data file
+	 * is synchronous.
+	 */
+	public boolean groupCommit = false;
+
+	/** Maximum number of transactions committed as one group. */
+	public int maxBatchSize = 64;
+
+	/**
+	 * How long a group commit may wait for more transactions to arrive
+	 * before committing a batch that is not full. With 0, a batch holds
+	 * whatever was already queued.
+	 */
+	public long maxBatchLatencyMillis = 0L;
+
+	/**
+	 * Keep an ordered log of the keys of the store, so that keys can be
+	 * listed and scanned by prefix.
+	 * @see PersistentKeyValueStore#keys(String)
+	 */
+	public boolean keyLog = false;
+
+	/**
+	 * The number of shards of the store, if it is created anew. Keys are
+	 * partitioned by hash across the shards, each with its own index, data
+	 * file and processor thread, so that operations on different shards
+	 * run in parallel. The other options apply to each shard.
+	 * This option is ignored if a persisted store already exists.
+	 */
+	public int shards = 1;
+
+	/**
+	 * Write all changes to the store files through a write-ahead log in the
+	 * store's directory. A change is durable once its transaction is
+	 * committed to the log with one sequential write and sync; the store
+	 * files themselves are only synced at checkpoints. Changes to the store
+	 * files of a transaction interrupted by a crash are rolled back when
+	 * the store is next opened. Replaces the synchronous writes to the data
+	 * file and makes {@link #indexSync} unnecessary.
+	 */
+	public boolean writeAheadLog = false;
+
+	/**
+	 * The size in bytes the write-ahead log may reach before the store
+	 * files are synced and the log emptied.
+	 */
+	public long checkpointBytes = 4L << 20;
+
+	/**
+	 * The fraction of the data file that must have been freed before the
+	 * store is compacted in idle time: values stored towards the end of the
+	 * file are moved into free space before it, and the file is truncated.
+	 * With 0, the data file never shrinks.
+	 */
+	public float compactionRatio = 0f;
+
+	/**
+	 * Keep a Bloom filter of the keys of the store, so that most lookups of
+	 * keys that are not mapped return without reading the index files. The
+	 * filter is saved when the store is shut down, and rebuilt from the
+	 * index if the store was not shut down cleanly.
+	 */
+	public boolean bloomFilter = false;
+
+	/**
+	 * The number of values each shard keeps cached in their persisted form,
+	 * so that reads of the most recently used keys need not touch the store
+	 * files. Writes to a key invalidate its cached value. With 0, nothing
+	 * is cached.
+	 */
+	public int cacheEntries = 0;
+
+	/** The number of bytes of values each shard's cache may hold. */
+	public long cacheBytes = 1L << 20;
+
+	/**
+	 * Keep a version stamp per key, counting the writes to it, so that
+	 * values can be updated by {@link PersistentKeyValueStore#compareAndPut}.
+	 * The stamps are kept as long values of keys that start with a NUL
+	 * character, which the store's own keys must not, and outlive the
+	 * removal of their keys. The removal of a key that is not mapped
+	 * changes nothing and is not counted.
+	 */
+	public boolean versionStamps = false;
+
+	/**
+	 * The number of transactions each shard may have queued or in progress,
+	 * including completed ones whose bound event has not yet run. With 0,
+	 * the queue is unbounded.
+	 */
+	public int maxQueuedTransactions = 0;
+
+	/**
+	 * The number of transactions each thread may have queued or in progress
+	 * in each shard, so that one client's burst of asynchronous operations
+	 * cannot take the whole queue from the others. With 0, only
+	 * {@link #maxQueuedTransactions} applies.
+	 */
+	public int maxQueuedPerThread = 0;
+
+	/** What a thread does when it would exceed a queue limit. */
+	public QueuePolicy queuePolicy = QueuePolicy.BLOCK;
+
+}
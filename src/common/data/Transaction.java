@@ -1,8 +1,21 @@
 package common.data;
 
-public class Transaction<T> {
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
-	public static enum Type { GET, GETL, PUT, PUTL, DEL, MOVE, EXISTS }
+import common.*;
+
+/**
+ * An operation on a {@link PersistentKeyValueStore}, completed
+ * asynchronously. As a future, it yields whether the operation succeeded.
+ */
+public class Transaction<T> implements Future<Boolean> {
+
+	public static enum Type {
+		GET, GETL, PUT, PUTL, DEL, MOVE, EXISTS, KEYS, VALUES, GETB, PUTB, BATCH,
+		INCR, CAS, VERSION, SNAPSHOT
+	}
 
 	public static interface Event<T> {
 		public void process(Transaction<T> txn);
@@ -13,9 +26,30 @@ public class Transaction<T> {
 	public final T value;
 	String newKey;
 	long l;
+	// KEYS and VALUES scans: one batch of results
+	List<String> keys;
+	List<T> values;
+	PersistableFactory<?> factory;
+	// GETB and PUTB: a value in its persisted form
+	byte[] bytes;
+	// BATCH: the writes to apply in order
+	List<Transaction<T>> ops;
+	// SNAPSHOT: the copy started, which every shard starts at once
+	BuiltInEngine.Copy copy;
+	CountDownLatch shards;
 	boolean succeeded;
+	// point reads: the cache was checked, and counted a miss, on the
+	// reading thread
+	boolean cacheMissed;
+	// queueing: order and lane, and the queue slots held until completed
+	long seq;
+	boolean priority;
+	boolean holdsSlot;
+	Semaphore threadSlots;
 	private boolean completed;
 	Event<T> boundEvent;
+	// submit the events bound with an executor; null once completed
+	private List<Runnable> listeners = new ArrayList<Runnable>();
 
 	Transaction(Type type, String key, T value) {
 		this.type = type;
@@ -41,6 +75,62 @@ public class Transaction<T> {
 		this(key, Type.GETL);
 	}
 
+	/**
+	 * A KEYS scan for the keys with the given prefix that follow
+	 * {@code after}, or a VALUES scan from the row position {@code l}.
+	 */
+	Transaction(Type type, String prefix, String after, long position,
+	PersistableFactory<?> factory) {
+		this.type = type;
+		this.key = prefix;
+		this.newKey = after;
+		this.l = position;
+		this.factory = factory;
+		this.value = null;
+	}
+
+	/**
+	 * A PUTB of the given bytes, or a GETB if bytes is null.
+	 */
+	Transaction(String key, byte[] bytes) {
+		this.type = bytes == null ? Type.GETB : Type.PUTB;
+		this.key = key;
+		this.bytes = bytes;
+		this.value = null;
+	}
+
+	/**
+	 * A CAS of the given value, or an INCR of the key's counter by the
+	 * given delta if the value is null.
+	 */
+	Transaction(String key, T value, long l) {
+		this.type = value == null ? Type.INCR : Type.CAS;
+		this.key = key;
+		this.value = value;
+		this.l = l;
+	}
+
+	/**
+	 * A SNAPSHOT into the given directory, started once all shards have
+	 * reached theirs.
+	 */
+	Transaction(File dir, CountDownLatch shards) {
+		this.type = Type.SNAPSHOT;
+		this.key = dir.getPath();
+		this.shards = shards;
+		this.value = null;
+	}
+
+	/**
+	 * A BATCH of the given writes, all to keys of the same shard.
+	 */
+	Transaction(List<Transaction<T>> ops) {
+		this.type = Type.BATCH;
+		this.key = ops.isEmpty() ? null : ops.get(0).key;
+		this.ops = ops;
+		this.value = null;
+	}
+
 	Transaction(String key, Type type) {
 		this.type = type;
 		this.key = key;
@@ -55,13 +145,60 @@ public class Transaction<T> {
 		return succeeded;
 	}
 
+	/**
+	 * @return the long value read by a GETL transaction, the counter of an
+	 *   INCR, or the version stamp read by a VERSION or written by a CAS,
+	 *   or -1 if none
+	 */
+	public long longValue() {
+		switch (type) {
+		case GETL: case INCR: case CAS: case VERSION:
+			return succeeded ? l : -1L;
+		default:
+			return -1L;
+		}
+	}
+
 	public void bind(Event<T> event) {
 		boundEvent = event;
 	}
 
-	synchronized void setCompleted() {
-		completed = true;
-		notifyAll();
+	/**
+	 * Processes the event on the given executor once the transaction is
+	 * completed, or right away if it already is. Any number of events may
+	 * be bound this way, so that further operations can be chained without
+	 * a thread waiting for each; none of them runs on the store's event
+	 * thread.
+	 */
+	public void bind(final Event<T> event, final Executor executor) {
+		Runnable listener = new Runnable() {
+			@Override public void run() {
+				executor.execute(new Runnable() {
+					@Override public void run() {
+						event.process(Transaction.this);
+					}
+				});
+			}
+		};
+		synchronized (this) {
+			if (!completed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	void setCompleted() {
+		List<Runnable> bound;
+		synchronized (this) {
+			completed = true;
+			notifyAll();
+			bound = listeners;
+			listeners = null;
+		}
+		for (int i = 0; bound != null && i < bound.size(); i++)
+			bound.get(i).run();
 	}
 
 	public synchronized void waitCompleted() throws InterruptedException {
@@ -70,4 +207,43 @@ public class Transaction<T> {
 		}
 	}
 
+	@Override
+	public boolean isDone() {
+		return isCompleted();
+	}
+
+	/** Does nothing: a queued transaction cannot be cancelled. */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/**
+	 * Waits for the transaction to complete.
+	 * @return whether it succeeded
+	 */
+	@Override
+	public Boolean get() throws InterruptedException {
+		waitCompleted();
+		return succeeded;
+	}
+
+	@Override
+	public synchronized Boolean get(long timeout, TimeUnit unit)
+	throws InterruptedException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!completed) {
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0L)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, wait);
+		}
+		return succeeded;
+	}
+
 }
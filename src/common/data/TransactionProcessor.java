@@ -1,7 +1,11 @@
 package common.data;
 
 import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import common.*;
 
@@ -10,15 +14,87 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 	private final BlockingQueue<Transaction<T>> txnQueue;
 	private final BlockingQueue<Transaction<T>> eventQueue;
 	private final Thread eventProcessor;
-	private final HashIndex index;
-	private final DataStore store;
+	private final BuiltInEngine engine;
+	private final StorageEngine.Entry entry = new StorageEngine.Entry();
+	private final boolean groupCommit;
+	private final int maxBatchSize;
+	private final long maxBatchLatencyNanos;
+	private final List<Transaction<T>> batch;
+	private final ValueCache cache; // null unless enabled in the options
+	private final boolean versionStamps;
+	// queued by shutdown to wake the processor without interrupting its I/O
+	private final Transaction<T> stop;
+	private int pending; // transactions queued or in progress; guarded by txnQueue
+	private int maxPending; // guarded by txnQueue
+	private long rejected; // guarded by txnQueue
+	private long nextSeq; // guarded by txnQueue
+	// room in the queue, and per submitting thread; null if unbounded
+	private final Semaphore slots;
+	private final ThreadLocal<Semaphore> threadSlots;
+	private final boolean failFast;
+	// keys with write transactions queued or in progress, and their number
+	private final Map<String, Integer> queuedWrites = new HashMap<String, Integer>();
+	private volatile boolean stopping;
+	// batches and moves queued or in progress, which write several keys
+	// and which no concurrent point read overtakes
+	private final AtomicInteger multiKeyWrites = new AtomicInteger();
 	private volatile boolean running;
+	// odd while the processor may be modifying the engine's files
+	private volatile int version;
+	// false while the engine holds writes that have not reached the files
+	private volatile boolean readable = true;
+	// writes since the last complete idle pass, or work left over from it
+	private boolean idleWork = true;
 
-	TransactionProcessor(File backingDir, int blockSize, int initCapacity)
-	throws IOException {
+	/** Maximum number of results of a KEYS or VALUES scan transaction. */
+	static final int SCAN_BATCH = 256;
+
+	/** Prefix of the keys of the version stamps of other keys. */
+	static final String VERSION_PREFIX = "\u0000";
+
+	/**
+	 * The number of transactions queued before it that a point read may
+	 * overtake.
+	 */
+	private static final long PRIORITY_LEAD = 64L;
+
+	/** Attempts of {@link #tryRead} before it gives up. */
+	private static final int READ_ATTEMPTS = 3;
+
+	// keeps the reads of tryRead before its second read of the version;
+	// null on Java 7, which has none
+	private static final MethodHandle LOAD_FENCE = findLoadFence();
+
+	// on Java 7, each reading thread's own volatile field, whose write the
+	// reads before it cannot pass
+	private static final ThreadLocal<Fence> FENCE = new ThreadLocal<Fence>() {
+		@Override protected Fence initialValue() {
+			return new Fence();
+		}
+	};
+
+	private static final class Fence {
+		volatile boolean written;
+	}
+
+	/**
+	 * @param factory opens the engine of a store created anew
+	 */
+	TransactionProcessor(File backingDir, int blockSize, int initCapacity,
+	StoreOptions options, StorageEngine.Factory factory) throws IOException {
 		super();
 		setDaemon(true);
-		txnQueue = new LinkedBlockingQueue<Transaction<T>>();
+		// point reads of keys without queued writes go first, ahead of at
+		// most PRIORITY_LEAD transactions each, so that a steady stream of
+		// them cannot hold back the other transactions indefinitely
+		txnQueue = new PriorityBlockingQueue<Transaction<T>>(11,
+			new Comparator<Transaction<T>>() {
+				@Override public int compare(Transaction<T> a, Transaction<T> b) {
+					long rankA = a.priority ? a.seq - PRIORITY_LEAD : a.seq;
+					long rankB = b.priority ? b.seq - PRIORITY_LEAD : b.seq;
+					return rankA < rankB ? -1 : rankA == rankB ? 0 : 1;
+				}
+			});
 		eventQueue = new LinkedBlockingQueue<Transaction<T>>();
 		eventProcessor = new Thread(new Runnable() {
 			@Override public void run() {
@@ -26,6 +102,7 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 					try {
 						Transaction<T> txn = eventQueue.take();
 						txn.boundEvent.process(txn);
+						releaseSlots(txn);
 						synchronized (eventQueue) {
 							if (eventQueue.size() == 0) {
 								eventQueue.notify();
@@ -36,17 +113,269 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 			}
 		});
 		eventProcessor.setDaemon(true);
-		index = new HashIndex(backingDir, initCapacity);
-		store = new DataStore(backingDir, blockSize);
+		groupCommit = options.groupCommit;
+		maxBatchSize = Math.max(options.maxBatchSize, 1);
+		maxBatchLatencyNanos =
+			TimeUnit.MILLISECONDS.toNanos(options.maxBatchLatencyMillis);
+		batch = new ArrayList<Transaction<T>>();
+		cache = options.cacheEntries > 0
+			? new ValueCache(options.cacheEntries, options.cacheBytes) : null;
+		versionStamps = options.versionStamps;
+		slots = options.maxQueuedTransactions > 0
+			? new Semaphore(options.maxQueuedTransactions) : null;
+		final int perThread = options.maxQueuedPerThread;
+		threadSlots = perThread <= 0 ? null : new ThreadLocal<Semaphore>() {
+			@Override protected Semaphore initialValue() {
+				return new Semaphore(perThread);
+			}
+		};
+		failFast = options.queuePolicy == StoreOptions.QueuePolicy.FAIL;
+		stop = new Transaction<T>("");
+		stop.priority = true;
+		stop.seq = Long.MIN_VALUE / 2; // ahead of all others
+		// a persisted store keeps its engine
+		StoreOptions.EngineType persisted = engineOf(backingDir);
+		if (persisted != null)
+			factory = factoryOf(persisted);
+		engine = builtIn(factory.open(backingDir, blockSize, initCapacity,
+			options));
+	}
+
+	/**
+	 * @return a factory of the built-in engine of the given type
+	 */
+	static StorageEngine.Factory factoryOf(final StoreOptions.EngineType type) {
+		return new StorageEngine.Factory() {
+			@Override public StorageEngine open(File dir, int blockSize,
+			int initCapacity, StoreOptions options) throws IOException {
+				switch (type) {
+				case LOG_STRUCTURED:
+					return new LogStructuredEngine(dir, options);
+				case MEMORY:
+					return new MemoryEngine();
+				default:
+					return new HashEngine(dir, blockSize, initCapacity, options);
+				}
+			}
+		};
+	}
+
+	private static BuiltInEngine builtIn(StorageEngine engine) {
+		return engine instanceof BuiltInEngine ? (BuiltInEngine) engine
+			: new BuiltInEngine.Adapter(engine);
+	}
+
+	/**
+	 * @return true if a store of either engine is persisted in the given
+	 *   directory
+	 */
+	static boolean hasStore(File backingDir) {
+		return engineOf(backingDir) != null;
+	}
+
+	/**
+	 * @return the built-in engine of the store persisted in the given
+	 *   directory, or null if there is none
+	 */
+	static StoreOptions.EngineType engineOf(File backingDir) {
+		if (new File(backingDir, LogStructuredEngine.MANIFEST_FILE).exists())
+			return StoreOptions.EngineType.LOG_STRUCTURED;
+		if (new File(backingDir, DataStore.STORE_NAME).exists())
+			return StoreOptions.EngineType.HASH;
+		return null;
+	}
+
+	/** @return the number of reads served by the cache, if any */
+	long cacheHits() {
+		return cache == null ? 0L : cache.hits();
+	}
+
+	/** @return the number of reads the cache could not serve, if any */
+	long cacheMisses() {
+		return cache == null ? 0L : cache.misses();
+	}
+
+	/** @return true if SNAPSHOT transactions are supported */
+	boolean canSnapshot() {
+		return engine.canCopy();
+	}
+
+	boolean hasVersionStamps() {
+		return versionStamps;
+	}
+
+	/** @return true if KEYS scans are supported */
+	boolean canScanKeys() {
+		return engine.canScanKeys();
+	}
+
+	/**
+	 * @return true if KEYS scans list every key of the store
+	 */
+	boolean canListKeys() {
+		return engine.canListKeys();
+	}
+
+	/**
+	 * Queues a transaction, after waiting for room in the queue if it is
+	 * bounded and the policy is to block. Point reads of keys that have no
+	 * write queued are queued ahead of up to {@link #PRIORITY_LEAD} other
+	 * transactions; the others are never overtaken by more.
+	 * @return false if the transaction was rejected for lack of room
+	 */
+	boolean putTransaction(Transaction<T> txn) throws InterruptedException {
+		if (!acquireSlots(txn) || stopping) {
+			releaseSlots(txn);
+			synchronized (txnQueue) {
+				rejected++;
+			}
+			return false;
+		}
+		enqueue(txn);
+		return true;
+	}
+
+	/**
+	 * Queues a transaction that follows from another, from the processor
+	 * thread that completed it: without taking queue slots, since the
+	 * first was admitted with them, so that processors never wait for
+	 * each other.
+	 * @return false if the processor is stopping
+	 */
+	boolean putFollowUp(Transaction<T> txn) {
+		if (stopping) {
+			synchronized (txnQueue) {
+				rejected++;
+			}
+			return false;
+		}
+		enqueue(txn);
+		return true;
+	}
+
+	/**
+	 * Has the event thread process the event bound to a transaction that
+	 * was completed without being queued, if any.
+	 */
+	void postEvent(Transaction<T> txn) {
+		if (txn.boundEvent != null)
+			eventQueue.offer(txn);
+	}
+
+	private void enqueue(Transaction<T> txn) {
+		if (isWrite(txn.type)) {
+			if (isMultiKeyWrite(txn.type))
+				multiKeyWrites.incrementAndGet();
+			countWrites(txn, 1);
+		} else if (isPointRead(txn.type)) {
+			synchronized (queuedWrites) {
+				txn.priority = !queuedWrites.containsKey(txn.key);
+			}
+		}
+		synchronized (txnQueue) {
+			txn.seq = nextSeq++;
+			if (++pending > maxPending)
+				maxPending = pending;
+		}
+		txnQueue.offer(txn); // unbounded, so never refused
+	}
+
+	/**
+	 * Takes a slot of the queue and of the calling thread's share of it, if
+	 * they are bounded. The processor and event threads take none, since
+	 * they may not wait for the transactions they are to complete.
+	 * @return false if there was no room and the policy is to fail
+	 */
+	private boolean acquireSlots(Transaction<T> txn) throws InterruptedException {
+		Thread thread = Thread.currentThread();
+		if (thread == this || thread == eventProcessor)
+			return true;
+		if (threadSlots != null) {
+			Semaphore own = threadSlots.get();
+			if (!acquire(own))
+				return false;
+			txn.threadSlots = own;
+		}
+		if (slots != null) {
+			try {
+				if (!acquire(slots))
+					return false;
+			} catch (InterruptedException e) {
+				releaseSlots(txn);
+				throw e;
+			}
+			txn.holdsSlot = true;
+		}
+		return true;
+	}
+
+	private boolean acquire(Semaphore semaphore) throws InterruptedException {
+		if (failFast)
+			return semaphore.tryAcquire();
+		semaphore.acquire();
+		return true;
+	}
+
+	private void releaseSlots(Transaction<T> txn) {
+		if (txn.holdsSlot) {
+			txn.holdsSlot = false;
+			slots.release();
+		}
+		if (txn.threadSlots != null) {
+			txn.threadSlots.release();
+			txn.threadSlots = null;
+		}
+	}
+
+	/**
+	 * Counts the keys written by a transaction in or out of the queued
+	 * writes, which point reads of the same keys may not overtake.
+	 */
+	private void countWrites(Transaction<T> txn, int delta) {
+		synchronized (queuedWrites) {
+			if (txn.type == Transaction.Type.BATCH) {
+				for (Transaction<T> op : txn.ops)
+					countWrite(op.key, delta);
+			} else {
+				countWrite(txn.key, delta);
+				if (txn.type == Transaction.Type.MOVE)
+					countWrite(txn.newKey, delta);
+			}
+		}
 	}
 
-	void putTransaction(Transaction<T> txn) throws InterruptedException {
-		txnQueue.put(txn);
+	private void countWrite(String key, int delta) {
+		Integer count = queuedWrites.get(key);
+		int n = (count == null ? 0 : count) + delta;
+		if (n == 0)
+			queuedWrites.remove(key);
+		else queuedWrites.put(key, n);
+	}
+
+	/** @return the number of transactions queued or in progress */
+	int queueDepth() {
+		synchronized (txnQueue) {
+			return pending;
+		}
+	}
+
+	/** @return the most transactions that were queued or in progress */
+	int maxQueueDepth() {
+		synchronized (txnQueue) {
+			return maxPending;
+		}
+	}
+
+	/** @return the number of transactions rejected for lack of room */
+	long rejectedTransactions() {
+		synchronized (txnQueue) {
+			return rejected;
+		}
 	}
 
 	void waitCompleted() throws InterruptedException {
 		synchronized (txnQueue) {
-			while (txnQueue.size() > 0) {
+			while (pending > 0) {
 				txnQueue.wait();
 			}
 		}
@@ -57,17 +386,287 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 		}
 	}
 
+	/**
+	 * Processes a GET, GETB, GETL, VERSION or EXISTS transaction on the
+	 * calling thread,
+	 * without queueing it, from the cache or by reading the engine's files
+	 * while the processor is not modifying them. Gives up if the engine
+	 * cannot be read concurrently, if the processor keeps modifying it or
+	 * holds writes that have not yet reached the files, or has writes of
+	 * the key, or batches or moves, queued that the read must not overtake.
+	 * @return true if the transaction was completed
+	 */
+	boolean tryRead(Transaction<T> txn) {
+		StorageEngine.Entry entry = new StorageEngine.Entry();
+		boolean readValue = txn.type == Transaction.Type.GET
+			|| txn.type == Transaction.Type.GETB;
+		for (int attempt = 0; attempt < READ_ATTEMPTS && running; attempt++) {
+			int v = version;
+			if ((v & 1) != 0 || !readable || multiKeyWrites.get() != 0
+					|| isQueuedWrite(txn.key))
+				continue;
+			try {
+				if (cache != null && !txn.cacheMissed) {
+					if (readCached(txn)) {
+						txn.setCompleted();
+						return true;
+					}
+					txn.cacheMissed = true; // once per read, however retried
+				}
+				if (!engine.lookupConcurrently(txn.type == Transaction.Type.VERSION
+						? VERSION_PREFIX + txn.key : txn.key, readValue, entry))
+					return false;
+				byte[] bytes = entry.value;
+				loadFence();
+				if (version != v)
+					continue; // modified while reading
+				if (cache != null && bytes != null) {
+					synchronized (cache) { // not if a write invalidated it since
+						if (version == v)
+							cache.put(txn.key, bytes.clone());
+					}
+				}
+				switch (txn.type) {
+				case GET:
+					txn.succeeded = bytes != null;
+					if (bytes != null)
+						txn.value.reconstruct(new ByteArrayInputStream(bytes));
+					break;
+				case GETB:
+					txn.succeeded = bytes != null;
+					txn.bytes = bytes;
+					break;
+				case GETL:
+					txn.succeeded = entry.type == StorageEngine.Entry.LONG;
+					txn.l = txn.succeeded ? entry.l : 0L;
+					break;
+				case VERSION:
+					txn.succeeded = true;
+					txn.l = entry.type == StorageEngine.Entry.LONG ? entry.l : 0L;
+					break;
+				default:
+					txn.succeeded = entry.type != StorageEngine.Entry.NONE;
+				}
+			} catch (IOException e) {
+				continue; // a file closed or torn by a concurrent modification
+			} catch (RuntimeException e) {
+				continue; // likewise
+			}
+			txn.setCompleted();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Unsafe.loadFence bound to the Unsafe instance, or null if
+	 *   the runtime has no such fence or denies access to it
+	 */
+	private static MethodHandle findLoadFence() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup().findVirtual(unsafeClass, "loadFence",
+				MethodType.methodType(void.class)).bindTo(field.get(null));
+		} catch (Exception e) { // Java 7
+			return null;
+		}
+	}
+
+	/**
+	 * Keeps the reads before it from being reordered with the reads after
+	 * it, which a volatile read alone does not: without it, the reads of
+	 * a row could complete after the version was found unchanged.
+	 */
+	private static void loadFence() {
+		if (LOAD_FENCE == null) {
+			FENCE.get().written = true;
+			return;
+		}
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable t) {
+			throw new AssertionError(t);
+		}
+	}
+
+	/** @return true if writes of the key are queued or in progress */
+	private boolean isQueuedWrite(String key) {
+		synchronized (queuedWrites) {
+			return queuedWrites.containsKey(key);
+		}
+	}
+
+	private void beginWrite() {
+		version++;
+	}
+
+	private void endWrite() {
+		readable = !engine.hasPending();
+		version++;
+	}
+
+	private static boolean isPointRead(Transaction.Type type) {
+		switch (type) {
+		case GET: case GETB: case GETL: case EXISTS: case VERSION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isMultiKeyWrite(Transaction.Type type) {
+		return type == Transaction.Type.BATCH || type == Transaction.Type.MOVE;
+	}
+
+	/**
+	 * @return true if a transaction of the type may modify the engine's
+	 *   files, as a snapshot may by flushing the engine first
+	 */
+	private static boolean modifies(Transaction.Type type) {
+		return isWrite(type) || type == Transaction.Type.SNAPSHOT;
+	}
+
+	private static boolean isWrite(Transaction.Type type) {
+		switch (type) {
+		case PUT: case PUTL: case DEL: case MOVE: case PUTB: case BATCH:
+		case INCR: case CAS:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	private void processTransaction(Transaction<T> txn) {
+		if (!modifies(txn.type)) {
+			// concurrent reads need not retry for it, nor maintenance run
+			applyTransaction(txn);
+			completeTransaction(txn);
+			return;
+		}
+		idleWork = true;
+		beginWrite();
+		applyTransaction(txn);
+		step();
+		if (isWrite(txn.type) || engine.hasPending()) {
+			try {
+				engine.flush();
+			} catch (IOException e) { // the write may not be durable
+				if (isWrite(txn.type))
+					txn.succeeded = false;
+			}
+		}
+		endWrite();
+		completeTransaction(txn);
+	}
+
+	/**
+	 * Processes one transaction and all transactions queued behind it, up to
+	 * the maximum batch size, waiting at most the maximum batch latency for
+	 * more transactions to arrive. Their writes are made durable with one
+	 * sync before any of them is completed.
+	 */
+	private void processBatch(Transaction<T> first) {
+		batch.clear();
+		batch.add(first);
+		long deadline = System.nanoTime() + maxBatchLatencyNanos;
+		try {
+			while (batch.size() < maxBatchSize) {
+				Transaction<T> txn = txnQueue.poll();
+				if (txn == null) {
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0L) break;
+					txn = txnQueue.poll(wait, TimeUnit.NANOSECONDS);
+					if (txn == null) break;
+				}
+				if (txn == stop) break;
+				batch.add(txn);
+			}
+		} catch (InterruptedException e) {
+			interrupt(); // commit what we have, then stop
+		}
+
+		boolean writes = false, modifies = false;
+		for (Transaction<T> txn : batch) {
+			writes |= isWrite(txn.type);
+			modifies |= modifies(txn.type);
+		}
+		if (modifies) { // else like processTransaction, for reads only
+			idleWork = true;
+			beginWrite();
+		}
+		for (Transaction<T> txn : batch) {
+			applyTransaction(txn);
+			if (modifies)
+				step();
+		}
+		if (writes) {
+			try {
+				engine.flush();
+			} catch (IOException e) { // the writes may not be durable
+				for (Transaction<T> txn : batch) {
+					if (isWrite(txn.type))
+						txn.succeeded = false;
+				}
+			}
+		}
+		if (modifies)
+			endWrite();
+		for (Transaction<T> txn : batch) {
+			completeTransaction(txn);
+		}
+		batch.clear();
+	}
+
+	private void applyTransaction(Transaction<T> txn) {
+		if (txn.type == Transaction.Type.BATCH) {
+			// all or none: checked first, then applied one after another
+			// and committed along with the transaction
+			txn.succeeded = prepareBatch(txn.ops);
+			for (int i = 0; i < txn.ops.size() && txn.succeeded; i++) {
+				Transaction<T> op = txn.ops.get(i);
+				if (!isWrite(op.type))
+					continue; // a condition, checked by prepareBatch
+				applyTransaction(op);
+				txn.succeeded = op.succeeded;
+			}
+			return;
+		}
+		if (cache != null) {
+			if (isWrite(txn.type)) {
+				cache.remove(txn.key);
+				if (txn.newKey != null)
+					cache.remove(txn.newKey);
+			} else if (!txn.cacheMissed) {
+				try {
+					if (readCached(txn))
+						return;
+				} catch (IOException e) {
+					txn.succeeded = false;
+					return;
+				}
+			}
+		}
+		if (isWrite(txn.type)) {
+			try {
+				engine.logOperation(txn.type, txn.key, txn.newKey);
+			} catch (IOException e) { // key too long to log
+				txn.succeeded = false;
+				return;
+			}
+		}
+		boolean unchanged = false; // as by the removal of an unmapped key
 		switch (txn.type) {
 		case GET:
 			try {
-				long addr = index.lookup(txn.key);
-				if (addr == 0L) { // probably because key is not in index
+				byte[] bytes = readValue(txn.key);
+				if (bytes == null) { // probably because key is not in index
 					txn.succeeded = false;
 				} else {
-					InputStream is = store.getInputStream(addr);
-					txn.value.reconstruct(is);
-					is.close();
+					if (cache != null)
+						cache.put(txn.key, bytes);
+					txn.value.reconstruct(new ByteArrayInputStream(bytes));
 					txn.succeeded = true;
 				}
 			} catch (IOException e) {
@@ -75,30 +674,86 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 				txn.succeeded = false;
 			}
 			break;
+		case GETB:
+			try {
+				txn.bytes = readValue(txn.key);
+				txn.succeeded = txn.bytes != null;
+				if (cache != null && txn.bytes != null)
+					cache.put(txn.key, txn.bytes.clone());
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+			break;
 		case GETL:
 			try {
-				txn.l = index.lookup(txn.key, true);
+				engine.lookup(txn.key, false, entry);
+				txn.succeeded = entry.type == StorageEngine.Entry.LONG;
+				txn.l = txn.succeeded ? entry.l : 0L;
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+			break;
+		case PUT: case PUTB:
+			try {
+				byte[] bytes = txn.bytes;
+				if (bytes == null) { // not persisted by prepareBatch
+					ByteArrayOutputStream os = new ByteArrayOutputStream();
+					txn.value.persist(os);
+					bytes = os.toByteArray();
+				}
+				engine.put(txn.key, bytes);
 				txn.succeeded = true;
 			} catch (IOException e) {
 				txn.succeeded = false;
 			}
 			break;
-		case PUT:
+		case CAS:
 			try {
-				long addr = index.updateAddr(txn.key, store.nextBlock());
-				if (addr == store.nextBlock()) // not overwriting prev. value
-					addr = store.allocNew();
-				OutputStream os = store.getOutputStream(addr);
+				txn.succeeded = false;
+				if (readVersion(txn.key) != txn.l)
+					break;
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
 				txn.value.persist(os);
-				os.close();
+				engine.put(txn.key, os.toByteArray());
+				txn.succeeded = true;
+			} catch (IOException e) { }
+			break;
+		case INCR:
+			try {
+				txn.succeeded = false;
+				engine.lookup(txn.key, false, entry);
+				if (entry.type == StorageEngine.Entry.VALUE)
+					break; // not a counter
+				txn.l += entry.type == StorageEngine.Entry.LONG ? entry.l : 0L;
+				txn.succeeded = engine.putLong(txn.key, txn.l);
+			} catch (IOException e) { }
+			break;
+		case VERSION:
+			try {
+				txn.l = readVersion(txn.key);
 				txn.succeeded = true;
 			} catch (IOException e) {
 				txn.succeeded = false;
 			}
 			break;
+		case SNAPSHOT:
+			try {
+				txn.copy = engine.startCopy(new File(txn.key));
+				txn.succeeded = true;
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+			// no shard goes on until all have started theirs
+			txn.shards.countDown();
+			try {
+				while (running && !txn.shards.await(100L, TimeUnit.MILLISECONDS));
+			} catch (InterruptedException e) {
+				interrupt();
+			}
+			break;
 		case PUTL:
 			try {
-				txn.succeeded = index.putLong(txn.key, txn.l);
+				txn.succeeded = engine.putLong(txn.key, txn.l);
 			} catch (IOException e) {
 				//e.printStackTrace();
 				txn.succeeded = false;
@@ -106,10 +761,12 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 			break;
 		case DEL:
 			try {
-				long addr = index.delete(txn.key);
-				if (addr != 0L) {
-					store.freeBlocks(addr);
+				if (versionStamps) { // stamp only the removal of a mapped key
+					engine.lookup(txn.key, false, entry);
+					unchanged = entry.type == StorageEngine.Entry.NONE;
 				}
+				if (!unchanged)
+					engine.remove(txn.key);
 				txn.succeeded = true;
 			} catch (IOException e) {
 				txn.succeeded = false;
@@ -117,28 +774,197 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 			break;
 		case MOVE:
 			try {
+				txn.succeeded = engine.move(txn.key, txn.newKey);
+			} catch (IOException e) {
 				txn.succeeded = false;
-				long addr = index.lookup(txn.key);
-				if (addr != 0L && index.updateAddr(txn.newKey, addr) == addr) {
-					index.delete(txn.key);
-					txn.succeeded = true;
-				}
-			} catch (IOException e) { }
+			}
 			break;
 		case EXISTS:
 			try {
-				index.lookup(txn.key, true); // throws exception if not found
-				txn.succeeded = true;
+				engine.lookup(txn.key, false, entry);
+				txn.succeeded = entry.type != StorageEngine.Entry.NONE;
 			} catch (IOException e) { txn.succeeded = false; }
+			break;
+		case KEYS:
+			txn.keys = new ArrayList<String>();
+			txn.succeeded = engine.canScanKeys();
+			txn.l = -1L;
+			try {
+				if (txn.succeeded && engine.scanKeys(txn.key, txn.newKey,
+						SCAN_BATCH, txn.keys))
+					txn.l = 0L; // more keys may follow
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+			break;
+		case VALUES:
+			try {
+				List<byte[]> values = new ArrayList<byte[]>();
+				List<String> keys = new ArrayList<String>();
+				txn.l = engine.scanValues(txn.l, txn.newKey, SCAN_BATCH, values,
+					keys);
+				if (!keys.isEmpty()) // where ordered engines continue
+					txn.newKey = keys.get(keys.size() - 1);
+				txn.values = new ArrayList<T>();
+				for (byte[] bytes : values) {
+					@SuppressWarnings("unchecked")
+					T value = (T) txn.factory.newT();
+					value.reconstruct(new ByteArrayInputStream(bytes));
+					txn.values.add(value);
+				}
+				txn.succeeded = true;
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+		}
+		if (versionStamps && txn.succeeded && !unchanged && isWrite(txn.type)
+				&& txn.type != Transaction.Type.BATCH) { // stamped by its writes
+			try {
+				long version = stampVersion(txn.key);
+				if (txn.type == Transaction.Type.MOVE)
+					stampVersion(txn.newKey);
+				else if (txn.type == Transaction.Type.CAS)
+					txn.l = version;
+			} catch (IOException e) {
+				txn.succeeded = false;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the writes of a batch can all be applied, short of an
+	 * I/O error: checks its conditions, persists the values to put, and
+	 * checks that no putLong is of a key that is mapped to a value once the
+	 * writes before it are applied, the only write that can fail otherwise.
+	 * @return false if a condition does not hold or a write would fail;
+	 *   nothing was applied
+	 */
+	private boolean prepareBatch(List<Transaction<T>> ops) {
+		// keys written by the batch so far, and whether to a value
+		Map<String, Boolean> values = new HashMap<String, Boolean>();
+		try {
+			for (Transaction<T> op : ops) {
+				if (op.type != Transaction.Type.GETL)
+					continue;
+				engine.lookup(op.key, false, entry);
+				if ((entry.type == StorageEngine.Entry.LONG ? entry.l : -1L) != op.l)
+					return false;
+			}
+			for (Transaction<T> op : ops) {
+				switch (op.type) {
+				case PUT:
+					ByteArrayOutputStream os = new ByteArrayOutputStream();
+					op.value.persist(os);
+					op.bytes = os.toByteArray();
+					values.put(op.key, true);
+					break;
+				case PUTB:
+					values.put(op.key, true);
+					break;
+				case DEL:
+					values.put(op.key, false);
+					break;
+				case GETL: // a condition, checked before any write
+					break;
+				default: // PUTL
+					Boolean value = values.get(op.key);
+					if (value == null) {
+						engine.lookup(op.key, false, entry);
+						value = entry.type == StorageEngine.Entry.VALUE;
+					}
+					if (value)
+						return false;
+					values.put(op.key, false);
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the version stamp of the key, or 0 if it was never written
+	 *   since stamps were kept
+	 */
+	private long readVersion(String key) throws IOException {
+		engine.lookup(VERSION_PREFIX + key, false, entry);
+		return entry.type == StorageEngine.Entry.LONG ? entry.l : 0L;
+	}
+
+	/**
+	 * Counts a write to the key in its version stamp.
+	 * @return the new version stamp
+	 */
+	private long stampVersion(String key) throws IOException {
+		long version = readVersion(key) + 1L;
+		if (!engine.putLong(VERSION_PREFIX + key, version))
+			throw new IOException("Version stamp of " + key + " is not a long.");
+		return version;
+	}
+
+	/**
+	 * Completes a GET, GETB or EXISTS transaction from the cache, if the
+	 * value of its key is cached.
+	 * @return true if the transaction was completed
+	 */
+	private boolean readCached(Transaction<T> txn) throws IOException {
+		switch (txn.type) {
+		case GET: case GETB: case EXISTS:
+			break;
+		default:
+			return false;
+		}
+		byte[] bytes = cache.get(txn.key);
+		if (bytes == null)
+			return false;
+		if (txn.type == Transaction.Type.GET)
+			txn.value.reconstruct(new ByteArrayInputStream(bytes));
+		else if (txn.type == Transaction.Type.GETB)
+			txn.bytes = bytes.clone();
+		txn.succeeded = true;
+		return true;
+	}
+
+	/**
+	 * @return the value of the key in its persisted form, or null if the
+	 *   key is not mapped to one
+	 */
+	private byte[] readValue(String key) throws IOException {
+		engine.lookup(key, true, entry);
+		return entry.value;
+	}
+
+	private void completeTransaction(Transaction<T> txn) {
+		if (isWrite(txn.type)) {
+			if (isMultiKeyWrite(txn.type))
+				multiKeyWrites.decrementAndGet();
+			countWrites(txn, -1);
 		}
 		txn.setCompleted();
 		if (txn.boundEvent != null) {
 			try {
-				eventQueue.put(txn);
-			} catch (InterruptedException ignore) { }
+				eventQueue.put(txn); // holds its slots until processed
+			} catch (InterruptedException e) {
+				releaseSlots(txn);
+			}
+		} else releaseSlots(txn);
+		synchronized (txnQueue) {
+			if (--pending == 0)
+				txnQueue.notifyAll();
 		}
 	}
 
+	/**
+	 * Has the engine do a little maintenance, such as one step of a rehash;
+	 * its writes join the commit.
+	 */
+	private void step() {
+		try {
+			engine.step();
+		} catch (IOException ignore) { } // retried on the next idle pass
+	}
+
 	/**
 	 * Gracefully shuts down the transaction processor as soon as possible.
 	 * Blocks the calling thread until shutdown is complete.
@@ -147,18 +973,23 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 	 */
 	public void shutdown() throws InterruptedException {
 		running = false;
-		interrupt();
+		stopping = true;
+		// an interrupt would close the channels of memory-mapped index files
+		txnQueue.add(stop);
 		eventProcessor.interrupt();
+		join();
 		for (Transaction<T> txn : txnQueue) {
+			if (txn == stop) continue;
 			txn.succeeded = false;
 			txn.setCompleted();
+			releaseSlots(txn);
+			synchronized (txnQueue) {
+				if (--pending == 0)
+					txnQueue.notifyAll();
+			}
 		}
-		join();
-		try {
-			index.close();
-		} catch (IOException ignore) { }
 		try {
-			store.close();
+			engine.close();
 		} catch (IOException ignore) { }
 	}
 
@@ -167,18 +998,37 @@ class TransactionProcessor<T extends Persistable> extends Thread {
 		running = true;
 		eventProcessor.start();
 		while (running) {
+			Transaction<T> txn;
 			try {
-				// process one transaction
-				processTransaction(txnQueue.take());
+				txn = txnQueue.take();
 			} catch (InterruptedException e) { break; }
-			index.rehashOne(); // process one rehash
-			if (txnQueue.size() == 0) {
-				synchronized (txnQueue) {
-					txnQueue.notify();
+			if (txn == stop) break;
+			if (groupCommit) {
+				// process a batch of transactions
+				processBatch(txn);
+			} else {
+				// process one transaction
+				processTransaction(txn);
+			}
+			if (txnQueue.size() == 0 && idleWork) {
+				beginWrite();
+				try {
+					engine.idle();
+				} catch (IOException ignore) { } // retried when next idle
+				// keep maintaining, e.g. rehashing then compacting, until
+				// done or another transaction arrives
+				boolean more = true;
+				try {
+					while (running && txnQueue.size() == 0
+							&& (more = engine.idleStep()));
+				} catch (IOException ignore) { } // likewise
+				if (engine.hasPending()) {
+					try {
+						engine.flush();
+					} catch (IOException ignore) { } // retried with the next commit
 				}
-				// keep rehashing until rehash complete
-				// or another transaction arrives
-				while (running && txnQueue.size() == 0 && index.rehashOne());
+				endWrite();
+				idleWork = more || engine.hasPending();
 			}
 		}
 	}
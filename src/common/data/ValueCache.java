@@ -0,0 +1,69 @@
+package common.data;
+
+import java.util.*;
+
+/**
+ * A cache of values in their persisted form by key, bounded by a number of
+ * entries and of bytes, from which the least recently used are evicted.
+ * It holds bytes rather than reconstructed values, so that callers share
+ * no mutable {@link common.Persistable}. Safe to use from any thread.
+ */
+class ValueCache {
+
+	private final LinkedHashMap<String, byte[]> values;
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes;
+	private long hits, misses;
+
+	ValueCache(int maxEntries, long maxBytes) {
+		values = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the value cached for the key, which must not be modified,
+	 *   or null if there is none
+	 */
+	synchronized byte[] get(String key) {
+		byte[] value = values.get(key);
+		if (value == null)
+			misses++;
+		else hits++;
+		return value;
+	}
+
+	/**
+	 * Caches a value, which must not be modified afterwards, evicting the
+	 * least recently used values as needed.
+	 */
+	synchronized void put(String key, byte[] value) {
+		if (value.length > maxBytes)
+			return;
+		byte[] old = values.put(key, value);
+		if (old != null)
+			bytes -= old.length;
+		bytes += value.length;
+		Iterator<byte[]> lru = values.values().iterator();
+		while (values.size() > maxEntries || bytes > maxBytes) {
+			bytes -= lru.next().length;
+			lru.remove();
+		}
+	}
+
+	synchronized void remove(String key) {
+		byte[] old = values.remove(key);
+		if (old != null)
+			bytes -= old.length;
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+}
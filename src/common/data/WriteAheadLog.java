@@ -0,0 +1,375 @@
+package common.data;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A redo log for the files of one store, kept in the store's backing
+ * directory. Writes to the data and index files are held in memory and
+ * appended to the log; a commit makes them durable with one sequential
+ * write and sync of the log, and only then writes them through to the
+ * files, which are not synced until the next checkpoint. After a crash,
+ * the writes of every commit found intact in the log are replayed, which
+ * restores the files to the state of the last commit.
+ *
+ * Each transaction also logs a record of the logical operation it
+ * performs, so that the log can be inspected; replay does not need them.
+ *
+ * Files are extended directly rather than through the log, since new
+ * space reads as zeroes either way. Operations that create, rename or
+ * delete files must checkpoint first, since the log refers to files by name.
+ */
+class WriteAheadLog {
+	static final String LOG_FILE = ".wal";
+
+	static final int STORE_FILE = 0;
+	static final int INDEX_ONE_FILE = 1;
+	static final int INDEX_TWO_FILE = 2;
+	static final String[] FILE_NAMES = {
+		DataStore.STORE_NAME, HashIndex.INDEX_ONE_FILE, HashIndex.INDEX_TWO_FILE
+	};
+
+	private static final byte WRITE = 1;
+	private static final byte OPERATION = 2;
+	private static final byte COMMIT = 3;
+
+	private static final int PAGE_SIZE = 4096;
+
+	/**
+	 * A file written through the log.
+	 */
+	static interface Target {
+		public void writeThrough(long pos, byte[] bytes) throws IOException;
+		public void syncThrough() throws IOException;
+	}
+
+	/** A write not yet committed. */
+	private static class Write {
+		final int file;
+		final long pos;
+		final byte[] data;
+
+		Write(int file, long pos, byte[] data) {
+			this.file = file;
+			this.pos = pos;
+			this.data = data;
+		}
+	}
+
+	private final File backingDir;
+	private final long checkpointBytes;
+	private final RandomAccessFile log;
+	private final Target[] targets;
+	private final List<Write> pending;
+	// pending writes by file and page, for reads of uncommitted data
+	private final List<Map<Long, List<Write>>> pages;
+	private final ByteArrayOutputStream group;
+	private final DataOutputStream groupOut;
+	// the record of the operation being applied, until its first write
+	private final ByteArrayOutputStream operation;
+	private final DataOutputStream operationOut;
+	private final CRC32 crc;
+	private long logLength;
+	// copies pages before they are written over; null unless in progress
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Opens the log of the given backing directory, first replaying the
+	 * commits of a previous run that may not have reached the store files.
+	 * @param checkpointBytes
+	 *   The log size beyond which a commit is followed by a checkpoint.
+	 */
+	WriteAheadLog(File backingDir, long checkpointBytes) throws IOException {
+		this.backingDir = backingDir;
+		this.checkpointBytes = checkpointBytes;
+		targets = new Target[FILE_NAMES.length];
+		pending = new ArrayList<Write>();
+		pages = new ArrayList<Map<Long, List<Write>>>();
+		for (int i = 0; i < FILE_NAMES.length; i++)
+			pages.add(new HashMap<Long, List<Write>>());
+		group = new ByteArrayOutputStream();
+		groupOut = new DataOutputStream(group);
+		operation = new ByteArrayOutputStream();
+		operationOut = new DataOutputStream(operation);
+		crc = new CRC32();
+		log = new RandomAccessFile(new File(backingDir, LOG_FILE), "rw");
+		recover();
+	}
+
+	/**
+	 * Registers the file that writes with the given file number go to,
+	 * or unregisters it if target is null.
+	 */
+	void setTarget(int file, Target target) {
+		targets[file] = target;
+	}
+
+	/**
+	 * Logs a write to one of the store files.
+	 * The write reaches the file at the next commit.
+	 */
+	void write(int file, long pos, byte[] bytes, int off, int len)
+	throws IOException {
+		byte[] data = Arrays.copyOfRange(bytes, off, off + len);
+		Write w = new Write(file, pos, data);
+		pending.add(w);
+		Map<Long, List<Write>> filePages = pages.get(file);
+		for (long page = pos / PAGE_SIZE; page <= (pos + len - 1) / PAGE_SIZE; page++) {
+			List<Write> writes = filePages.get(page);
+			if (writes == null) {
+				writes = new ArrayList<Write>();
+				filePages.put(page, writes);
+			}
+			writes.add(w);
+		}
+		if (operation.size() > 0) {
+			operation.writeTo(groupOut);
+			operation.reset();
+		}
+		groupOut.writeByte(WRITE);
+		groupOut.writeByte(file);
+		groupOut.writeLong(pos);
+		groupOut.writeInt(len);
+		groupOut.write(data);
+	}
+
+	/**
+	 * Logs the logical operation of the transaction about to be applied,
+	 * ahead of its first write. An operation that writes nothing, such as
+	 * a failed one, is not logged.
+	 * @param newKey the second key of the operation, or null
+	 * @throws IOException if a key is too long to log
+	 */
+	void operation(Transaction.Type type, String key, String newKey)
+	throws IOException {
+		operation.reset();
+		try {
+			operationOut.writeByte(OPERATION);
+			operationOut.writeByte(type.ordinal());
+			operationOut.writeUTF(key);
+			operationOut.writeUTF(newKey == null ? "" : newKey);
+		} catch (IOException e) {
+			operation.reset();
+			throw e;
+		}
+	}
+
+	/**
+	 * Ends the operation being applied, so that later writes, such as
+	 * those of maintenance, are not logged as its own.
+	 */
+	void endOperation() {
+		operation.reset();
+	}
+
+	/**
+	 * @return true if any writes await the next commit
+	 */
+	boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * @return true if writes to the given file await the next commit
+	 */
+	boolean hasPending(int file) {
+		return !pages.get(file).isEmpty();
+	}
+
+	/**
+	 * Copies the pending writes to the given range of a store file over
+	 * the bytes read from the file itself.
+	 */
+	void overlay(int file, long pos, byte[] bytes, int off, int len) {
+		if (pending.isEmpty())
+			return;
+		Map<Long, List<Write>> filePages = pages.get(file);
+		for (long page = pos / PAGE_SIZE; page <= (pos + len - 1) / PAGE_SIZE; page++) {
+			List<Write> writes = filePages.get(page);
+			if (writes == null)
+				continue;
+			// clip to the page, since writes spanning pages are in each list
+			long from = Math.max(pos, page * PAGE_SIZE);
+			long to = Math.min(pos + len, (page + 1) * PAGE_SIZE);
+			for (Write w : writes) {
+				long start = Math.max(from, w.pos);
+				long end = Math.min(to, w.pos + w.data.length);
+				if (start < end) {
+					System.arraycopy(w.data, (int) (start - w.pos),
+						bytes, off + (int) (start - pos), (int) (end - start));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes all writes logged since the last commit durable, then writes
+	 * them through to their files. Checkpoints if the log has grown past
+	 * its checkpoint size.
+	 */
+	void commit() throws IOException {
+		operation.reset();
+		if (group.size() == 0)
+			return;
+		byte[] bytes = group.toByteArray();
+		crc.reset();
+		crc.update(bytes, 0, bytes.length);
+		groupOut.writeByte(COMMIT);
+		groupOut.writeLong(crc.getValue());
+		byte[] record = group.toByteArray();
+		try {
+			log.seek(logLength);
+			log.write(record);
+			log.getFD().sync();
+		} catch (IOException e) {
+			// drop the partial commit; the group is logged again next time
+			log.setLength(logLength);
+			group.reset();
+			group.write(bytes, 0, bytes.length);
+			throw e;
+		}
+		logLength += record.length;
+		group.reset();
+
+		Snapshot s = snapshot;
+		if (s != null && s.isComplete())
+			snapshot = s = null;
+		for (int i = 0; s != null && i < pending.size(); i++) {
+			Write w = pending.get(i);
+			s.beforeWrite(w.file, w.pos, w.data.length);
+		}
+		for (Write w : pending)
+			targets[w.file].writeThrough(w.pos, w.data);
+		pending.clear();
+		for (Map<Long, List<Write>> filePages : pages)
+			filePages.clear();
+
+		if (logLength > checkpointBytes)
+			syncFiles();
+	}
+
+	/**
+	 * Starts a snapshot of the store files as of the last commit into the
+	 * given directory, to be copied by {@link Snapshot#copy}.
+	 * @throws IOException if another snapshot is in progress
+	 */
+	Snapshot startSnapshot(File dir) throws IOException {
+		Snapshot s = snapshot;
+		if (s != null && !s.isComplete())
+			throw new IOException("A snapshot is already in progress.");
+		File[] files = new File[FILE_NAMES.length];
+		for (int i = 0; i < FILE_NAMES.length; i++)
+			files[i] = new File(backingDir, FILE_NAMES[i]);
+		s = new Snapshot(files, dir);
+		snapshot = s;
+		return s;
+	}
+
+	/**
+	 * Commits, forces all store files to the storage device, and empties
+	 * the log. Callers about to rename, delete or cut short a store file
+	 * checkpoint first; any snapshot in progress is completed before.
+	 */
+	void checkpoint() throws IOException {
+		Snapshot s = snapshot;
+		if (s != null)
+			s.finish();
+		syncFiles();
+	}
+
+	private void syncFiles() throws IOException {
+		commit();
+		if (logLength == 0L)
+			return;
+		for (Target target : targets) {
+			if (target != null)
+				target.syncThrough();
+		}
+		log.setLength(0L);
+		log.getFD().sync();
+		logLength = 0L;
+	}
+
+	/**
+	 * Checkpoints and closes the log.
+	 */
+	void close() throws IOException {
+		checkpoint();
+		log.close();
+	}
+
+	/**
+	 * Replays the writes of every intact commit in the log onto the store
+	 * files, syncs them, and empties the log.
+	 */
+	private void recover() throws IOException {
+		if (log.length() == 0L)
+			return;
+		byte[] bytes = new byte[(int) log.length()];
+		log.readFully(bytes);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		RandomAccessFile[] files = new RandomAccessFile[FILE_NAMES.length];
+		List<Write> writes = new ArrayList<Write>();
+		try {
+			int groupStart = 0;
+			while (buf.hasRemaining()) {
+				byte type = buf.get();
+				if (type == COMMIT) {
+					crc.reset();
+					crc.update(bytes, groupStart, buf.position() - 1 - groupStart);
+					if (buf.remaining() < 8 || buf.getLong() != crc.getValue())
+						break; // torn commit
+					for (Write w : writes)
+						replay(w, files);
+					writes.clear();
+					groupStart = buf.position();
+				} else if (type == WRITE) {
+					int file = buf.get();
+					long pos = buf.getLong();
+					byte[] data = new byte[buf.getInt()];
+					buf.get(data);
+					writes.add(new Write(file, pos, data));
+				} else if (type == OPERATION) {
+					buf.get(); // operation type
+					skipUTF(buf); // key
+					skipUTF(buf); // new key
+				} else {
+					break; // garbage after the last commit
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			// a commit cut short by the crash; it never completed
+		} catch (IllegalArgumentException e) {
+			// likewise
+		} catch (NegativeArraySizeException e) {
+			// likewise
+		} finally {
+			for (RandomAccessFile file : files) {
+				if (file != null) {
+					file.getFD().sync();
+					file.close();
+				}
+			}
+		}
+		log.setLength(0L);
+		log.getFD().sync();
+	}
+
+	private static void skipUTF(ByteBuffer buf) {
+		int length = buf.getShort() & 0xffff;
+		buf.position(buf.position() + length);
+	}
+
+	private void replay(Write w, RandomAccessFile[] files) throws IOException {
+		if (w.file < 0 || w.file >= FILE_NAMES.length)
+			throw new IOException("Corrupt write-ahead log.");
+		if (files[w.file] == null)
+			files[w.file] = new RandomAccessFile(
+				new File(backingDir, FILE_NAMES[w.file]), "rw");
+		files[w.file].seek(w.pos);
+		files[w.file].write(w.data);
+	}
+
+}
@@ -0,0 +1,69 @@
+package common.data;
+
+import java.nio.*;
+import java.util.*;
+
+import common.*;
+
+/**
+ * Writes to a {@link PersistentKeyValueStore} to be applied in order as one
+ * transaction by {@link PersistentKeyValueStore#write}. The writes to keys of
+ * the same shard are queued together, checked, and then either all applied
+ * and made durable with one commit, or, if a putLong is of a key mapped to
+ * a value or a condition does not hold, none applied. Short of an I/O
+ * error part-way through, which can leave the earlier writes applied, a
+ * batch is all or nothing; with the write-ahead log enabled, so is a
+ * crash.
+ */
+public class WriteBatch<T extends Persistable> {
+
+	final List<Transaction<T>> ops = new ArrayList<Transaction<T>>();
+
+	/**
+	 * @param value The value to associate with the given key. The state of
+	 *  this object should <em>not</em> be mutated until the batch is written.
+	 */
+	public WriteBatch<T> put(String key, T value) {
+		ops.add(new Transaction<T>(Transaction.Type.PUT, key, value));
+		return this;
+	}
+
+	/**
+	 * Adds a put of a value in its persisted form: the remaining bytes of
+	 * the given buffer, whose position is left unchanged.
+	 */
+	public WriteBatch<T> putBytes(String key, ByteBuffer value) {
+		byte[] bytes = new byte[value.remaining()];
+		value.duplicate().get(bytes);
+		ops.add(new Transaction<T>(key, bytes));
+		return this;
+	}
+
+	public WriteBatch<T> putLong(String key, long value) {
+		ops.add(new Transaction<T>(key, value));
+		return this;
+	}
+
+	public WriteBatch<T> remove(String key) {
+		ops.add(new Transaction<T>(Transaction.Type.DEL, key, null));
+		return this;
+	}
+
+	/**
+	 * Adds a condition: the batch fails unless, before any of its writes,
+	 * the key is mapped to the given long, or to no long if it is -1, as
+	 * {@link PersistentKeyValueStore#getLong} reads it. With a putLong of
+	 * the same key, the batch compares and sets its long.
+	 */
+	public WriteBatch<T> ifLong(String key, long expected) {
+		Transaction<T> op = new Transaction<T>(key); // a GETL, checked
+		op.l = expected;
+		ops.add(op);
+		return this;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+}
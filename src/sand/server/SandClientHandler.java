@@ -2,11 +2,13 @@ package sand.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 import common.*;
 import common.network.*;
 import common.admin.AdminKeyManager;
+import common.data.WriteBatch;
 import common.crypto.ChallengeResponse;
 import static common.network.StatusCode.*;
 import common.server.*;
@@ -167,23 +169,73 @@ public class SandClientHandler implements Runnable {
 	// assume already authenticated
 	private void handleAddRemoveCredential(String userPrefix, String credUUIDstr)
 			throws IOException {
-		// garbage-collect last change to this credential
-		String lastUpdateKey = userPrefix + credUUIDstr;
-		long lastUpdate = server.credentials.getLong(lastUpdateKey);
-		if (lastUpdate >= 0L) // there exists an old version
-			server.credentials.removeAsync(userPrefix + lastUpdate);
-		server.credentials.putLong(lastUpdateKey, currentAccount.revNum);
+		long revNum = nextRevision();
+		if (revNum < 0L) {
+			statusCode(SERVER_ERROR);
+			return;
+		}
 		statusCode(ACCEPTED); // send revision number to client
 		DataOutputStream dos = new DataOutputStream(out);
-		dos.writeLong(currentAccount.revNum);
+		dos.writeLong(revNum);
 		statusCode(CONTINUE); // accept credential tuple or deletion from client
-		String key = userPrefix + currentAccount.revNum++; // incr revnum
-		boolean success =
-		  server.credentials.put(key, new Blob(UUID.fromString(credUUIDstr), conn))
-		  && server.accounts.put(activeUserName, currentAccount);
+		// read the tuple from the client once, as the write may be retried
+		ByteArrayOutputStream tuple = new ByteArrayOutputStream();
+		new Blob(UUID.fromString(credUUIDstr), conn).persist(tuple);
+		boolean success = putRevision(userPrefix, credUUIDstr, revNum,
+			ByteBuffer.wrap(tuple.toByteArray()));
 		statusCode(success ? OK : SERVER_ERROR);
 	}
 
+	/**
+	 * Puts a revision of a credential and moves the credential's pointer
+	 * to its last update there, garbage-collecting the revision it pointed
+	 * to. The pointer is compared and set, rereading it until no other
+	 * session moved it meanwhile; a revision older than the one it points
+	 * to is dropped.
+	 * @return false if the write failed
+	 */
+	private boolean putRevision(String userPrefix, String credUUIDstr,
+			long revNum, ByteBuffer tuple) {
+		String lastUpdateKey = userPrefix + credUUIDstr;
+		String key = userPrefix + revNum;
+		while (true) {
+			long lastUpdate = server.credentials.getLong(lastUpdateKey);
+			if (lastUpdate > revNum) { // superseded by a later revision
+				server.credentials.remove(key); // if put by a failed try
+				return true;
+			}
+			// the new revision, then the pointer to it, in one write
+			WriteBatch<Blob> batch = new WriteBatch<Blob>()
+				.ifLong(lastUpdateKey, lastUpdate)
+				.putBytes(key, tuple)
+				.putLong(lastUpdateKey, revNum);
+			if (lastUpdate >= 0L) // there exists an old version
+				batch.remove(userPrefix + lastUpdate);
+			if (server.credentials.write(batch))
+				return true;
+			if (server.credentials.getLong(lastUpdateKey) == lastUpdate)
+				return false; // failed, but not for a concurrent update
+		}
+	}
+
+	/**
+	 * Increments the revision number of the current account, rereading the
+	 * account until no other session of the user updated it meanwhile, so
+	 * that concurrent sessions each get their own revision.
+	 * @return the revision number allocated, or -1 if the account could not
+	 *   be updated
+	 */
+	private long nextRevision() {
+		for (;;) {
+			long version = server.accounts.getVersion(activeUserName);
+			if (version < 0L || !server.accounts.get(activeUserName, currentAccount))
+				return -1L;
+			long revNum = currentAccount.revNum++;
+			if (server.accounts.compareAndPut(activeUserName, version, currentAccount))
+				return revNum;
+		}
+	}
+
 	/**
 	 * If client is not authenticated, send UNAUTHORIZED and return false.
 	 * Else return true.
@@ -227,8 +279,14 @@ public class SandClientHandler implements Runnable {
 			if (!checkUserAuthenticated()) break;
 			server.accounts.removeAsync(activeUserName);
 			String prefix = currentAccount.uuid.toString();
-			for (long l = 0; l < currentAccount.revNum; l++) {
-				server.credentials.removeAsync(prefix + l);
+			if (server.credentials.canListKeys()) {
+				// live revisions and last-update pointers
+				for (String key : server.credentials.keys(prefix))
+					server.credentials.removeAsync(key);
+			} else {
+				for (long l = 0; l < currentAccount.revNum; l++) {
+					server.credentials.removeAsync(prefix + l);
+				}
 			}
 			currentAccount = null;
 			activeUserName = null;
@@ -275,13 +333,22 @@ public class SandClientHandler implements Runnable {
 			long clientRevNum = 0;
 			try { clientRevNum = Long.parseLong(action.getDetail()); }
 			catch (NumberFormatException e) { statusCode(BAD_REQUEST); break; }
+			// revisions added by other sessions of the user
+			server.accounts.get(activeUserName, currentAccount);
 			statusCode(ACCEPTED);
 			Blob blob = new Blob(null, conn);
 			String uuidPrefix = currentAccount.uuid.toString();
+			Set<String> liveKeys = null; // null: probe the index per revision
+			if (server.credentials.canListKeys()) {
+				liveKeys = new HashSet<String>();
+				for (String key : server.credentials.keys(uuidPrefix))
+					liveKeys.add(key);
+			}
 			for (long i = clientRevNum; i < currentAccount.revNum; i++) {
 				// transfer UUID + encrypted credential through packetized stream
 				String key = uuidPrefix + i;
-				if (server.credentials.containsKey(key)) {
+				if (liveKeys != null ? liveKeys.contains(key)
+						: server.credentials.containsKey(key)) {
 					out.write(1); // we're sending a revision
 					server.credentials.get(uuidPrefix + i, blob);
 				} else out.write(0); // skip this revision
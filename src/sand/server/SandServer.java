@@ -1,6 +1,7 @@
 package sand.server;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import javax.net.ssl.*;
 
@@ -13,26 +14,75 @@ import common.server.*;
 public class SandServer implements Runnable {
 
 	public static final int MAX_CLIENTS = 16;
+	// leaves most of the disk to the clients while a backup runs
+	private static final long BACKUP_BYTES_PER_SECOND = 8L << 20;
+	// a backup a day, of which the last few are kept
+	private static final long BACKUP_INTERVAL_HOURS = 24L;
+	private static final int BACKUPS_KEPT = 3;
 	private static int serverPort = SslDefaults.DEFAULT_SAND_PORT;
 
 	final PersistentKeyValueStore<Account> accounts;
 	final PersistentKeyValueStore<Blob> credentials;
 	final PersistentKeyValueStore<Persistable> blockedUsers; // used like hash set
 	private final ExecutorService pool;
+	private final ScheduledExecutorService backups;
 	private int activeClients;
 	private volatile boolean running;
 
 	public SandServer() throws IOException {
+		StoreOptions options = new StoreOptions();
+		options.writeAheadLog = true; // survives crashes mid-write
+		options.cacheEntries = 1024; // every login rereads the same accounts
+		options.bloomFilter = true; // logins probe blockedUsers, which rarely has the key
+		options.versionStamps = true; // sessions of a user allocate revisions by compareAndPut
 		accounts = new PersistentKeyValueStore<Account>(
-			new File(SandServerProperties.SAND_ACCOUNTS_DIR), 512, 512);
-		credentials = new PersistentKeyValueStore<Blob>(
-			new File(SandServerProperties.SAND_CREDENTIALS_DIR), 512, 512);
+			new File(SandServerProperties.SAND_ACCOUNTS_DIR), 512, 512, options);
+		File credentialsDir = new File(SandServerProperties.SAND_CREDENTIALS_DIR);
+		credentials = new PersistentKeyValueStore<Blob>(credentialsDir, 512, 512,
+			credentialOptions(credentialsDir));
+		// no version stamps: blocked users are only ever put and removed
+		StoreOptions blockedOptions = new StoreOptions();
+		blockedOptions.writeAheadLog = true;
+		blockedOptions.bloomFilter = true;
 		blockedUsers = new PersistentKeyValueStore<Persistable>(
-			new File(SandServerProperties.SAND_BLOCKEDUSERS_DIR), 512, 512);
+			new File(SandServerProperties.SAND_BLOCKEDUSERS_DIR), 512, 512,
+			blockedOptions);
 		pool = Executors.newCachedThreadPool();
+		backups = Executors.newSingleThreadScheduledExecutor();
 		AdminKeyManager.getPublicKey();
 	}
 
+	/**
+	 * @return the options of the credentials store in the given directory:
+	 *   log-structured, unless a store created before has a hash index
+	 */
+	private static StoreOptions credentialOptions(File dir) {
+		StoreOptions options = new StoreOptions();
+		options.groupCommit = true; // one sync per batch of clients
+		// sync requests from many clients run in parallel; a store created
+		// before sharding keeps a single shard
+		options.shards = 4;
+		// USER_DELETE removes every revision asynchronously; its handler
+		// waits for room rather than crowding out the other clients
+		options.maxQueuedTransactions = 4096;
+		options.maxQueuedPerThread = 256;
+		if (PersistentKeyValueStore.engineOf(dir) != StoreOptions.EngineType.HASH) {
+			// every edit adds a revision and removes the previous one, which
+			// suits appends to sorted segments
+			options.engine = StoreOptions.EngineType.LOG_STRUCTURED;
+			options.memtableBytes = 1L << 20; // per shard; revisions are small
+			options.maxSegments = 4; // merge away removed revisions sooner
+			return options;
+		}
+		// a store created before keeps its hash index, which these tune
+		options.mappedIndex = true; // SYNC probes one key per revision
+		options.indexSync = StoreOptions.IndexSync.ON_IDLE;
+		options.keyLog = true; // prefix scans by account UUID
+		options.writeAheadLog = true;
+		options.compactionRatio = 0.25f; // old revisions are deleted
+		return options;
+	}
+
 	Account getAccount(String username) {
 		Account account = new Account();
 		return accounts.get(username, account) ? account : null;
@@ -42,6 +92,55 @@ public class SandServer implements Runnable {
 		return accounts.put(username, account);
 	}
 
+	/**
+	 * Backs up the server's stores into the given directory, one
+	 * subdirectory per store, while clients keep being served.
+	 */
+	public void backup(File dir) throws IOException, InterruptedException {
+		accounts.snapshotTo(new File(dir,
+			new File(SandServerProperties.SAND_ACCOUNTS_DIR).getName()),
+			BACKUP_BYTES_PER_SECOND);
+		credentials.snapshotTo(new File(dir,
+			new File(SandServerProperties.SAND_CREDENTIALS_DIR).getName()),
+			BACKUP_BYTES_PER_SECOND);
+		blockedUsers.snapshotTo(new File(dir,
+			new File(SandServerProperties.SAND_BLOCKEDUSERS_DIR).getName()),
+			BACKUP_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * Backs up the stores into a new directory of the backup directory,
+	 * named by the time of the backup, then deletes all but the last
+	 * {@link #BACKUPS_KEPT} backups. A backup that fails is deleted.
+	 */
+	private void scheduledBackup() {
+		File root = new File(SandServerProperties.SAND_BACKUP_DIR);
+		File dir = new File(root, String.valueOf(System.currentTimeMillis()));
+		try {
+			backup(dir);
+		} catch (IOException e) {
+			System.err.println("Backup to " + dir + " failed: " + e.getMessage());
+			delete(dir);
+			return;
+		} catch (InterruptedException e) { // shutting down
+			delete(dir);
+			return;
+		}
+		String[] names = root.list();
+		Arrays.sort(names); // oldest first, as the times have as many digits
+		for (int i = 0; i < names.length - BACKUPS_KEPT; i++)
+			delete(new File(root, names[i]));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
 	synchronized void disconnect() {
 		--activeClients;
 		notify();
@@ -69,6 +168,11 @@ public class SandServer implements Runnable {
 		running = true;
 
 		SandLogger.populateSearchEntries(); // get entries into memory.
+		backups.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				scheduledBackup();
+			}
+		}, BACKUP_INTERVAL_HOURS, BACKUP_INTERVAL_HOURS, TimeUnit.HOURS);
 
 		while (running) {
 			synchronized (this) {
@@ -92,8 +196,10 @@ public class SandServer implements Runnable {
 
 		System.out.println("Server shutting down...");
 		pool.shutdown();
+		backups.shutdownNow(); // interrupts a backup in progress
 		try {
 			pool.awaitTermination(15L, TimeUnit.SECONDS);
+			backups.awaitTermination(15L, TimeUnit.SECONDS);
 			accounts.shutdown();
 			credentials.shutdown();
 		} catch (InterruptedException ignore) { }
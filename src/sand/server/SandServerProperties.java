@@ -4,5 +4,6 @@ public class SandServerProperties {
 	static final String SAND_ACCOUNTS_DIR = "../data/sand-server-data/accounts/";
 	static final String SAND_CREDENTIALS_DIR = "../data/sand-server-data/credentials/";
 	static final String SAND_BLOCKEDUSERS_DIR = "../data/sand-server-data/blockedusers/";
+	static final String SAND_BACKUP_DIR = "../data/sand-server-backups/";
 	public static final String SAND_LOG_DIR = "../data/sand-server-data/sandlogs/";
 }
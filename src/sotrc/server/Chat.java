@@ -1,8 +1,11 @@
 package sotrc.server;
 
+import java.io.*;
 import java.util.*;
 
-public class Chat {
+import common.*;
+
+public class Chat implements Persistable {
 
 	public UUID ChatID;
 	HashSet<String> participantHashSet; //TODO Need to switch it to participant Objects later
@@ -16,6 +19,11 @@ public class Chat {
 		}
 	}
 
+	/** For reconstruction. */
+	Chat() {
+		participantHashSet = new HashSet<String>();
+	}
+
 	public UUID getUUID() {
 		return ChatID;
 	}
@@ -38,4 +46,25 @@ public class Chat {
 	public boolean removeParticipant(String participant) {
 		return participantHashSet.remove(participant);
 	}
+
+	@Override
+	public void persist(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		Utils.writeUUID(ChatID, dos);
+		dos.writeInt(participantHashSet.size());
+		for (String participant : participantHashSet) {
+			dos.writeUTF(participant);
+		}
+	}
+
+	@Override
+	public void reconstruct(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		ChatID = Utils.readUUID(dis);
+		int size = dis.readInt();
+		participantHashSet = new HashSet<String>(size);
+		for (int i = 0; i < size; i++) {
+			participantHashSet.add(dis.readUTF());
+		}
+	}
 }
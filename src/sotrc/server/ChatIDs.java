@@ -0,0 +1,91 @@
+package sotrc.server;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+
+/**
+ * The IDs of the chats a user takes part in, kept as the halves of each
+ * UUID in one array, so that reading them back from the off-heap map
+ * allocates no UUIDs until they are iterated.
+ */
+public class ChatIDs implements Persistable, Iterable<UUID> {
+
+	private long[] halves = new long[0]; // most, then least significant
+	private int size;
+
+	/** @return false if the user already took part in the chat */
+	public boolean add(UUID chatID) {
+		if (contains(chatID))
+			return false;
+		if (halves.length == 2 * size)
+			halves = Arrays.copyOf(halves, Math.max(8, 4 * size));
+		halves[2 * size] = chatID.getMostSignificantBits();
+		halves[2 * size + 1] = chatID.getLeastSignificantBits();
+		size++;
+		return true;
+	}
+
+	public boolean contains(UUID chatID) {
+		long hi = chatID.getMostSignificantBits();
+		long lo = chatID.getLeastSignificantBits();
+		for (int i = 0; i < 2 * size; i += 2) {
+			if (halves[i] == hi && halves[i + 1] == lo)
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<UUID> iterator() {
+		return new Iterator<UUID>() {
+			private int i;
+
+			@Override public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override public UUID next() {
+				if (i == size)
+					throw new NoSuchElementException();
+				i++;
+				return new UUID(halves[2 * i - 2], halves[2 * i - 1]);
+			}
+
+			@Override public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public void persist(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(size);
+		for (int i = 0; i < 2 * size; i++) {
+			dos.writeLong(halves[i]); // as Utils.writeUUID writes them
+		}
+	}
+
+	@Override
+	public void reconstruct(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		int n = dis.readInt();
+		if (halves.length < 2 * n)
+			halves = new long[2 * n];
+		for (int i = 0; i < 2 * n; i++) {
+			halves[i] = dis.readLong();
+		}
+		size = n;
+	}
+
+}
@@ -157,8 +157,7 @@ public class ClientHandler {
 		}
 
 		// you cannot change passwords if you have active chats.
-		if (server.userToChatIDs.containsKey(username)
-				&& server.userToChatIDs.get(username).size() > 0) {
+		if (!server.chatIDsOf(username).isEmpty()) {
 			System.out.println("User attempted to change password with active chats.");
 			statusCode(reqId, FORBIDDEN);
 			return;
@@ -227,9 +226,8 @@ public class ClientHandler {
 	}
 
 	private void removeCurrentUserFromChat(UUID chatUUID) throws IOException {
-		Chat chat = server.chatLookup.get(chatUUID);
+		Chat chat = server.removeUserFromChat(currentUsername, chatUUID);
 		if (chat == null) return;
-		chat.removeParticipant(currentUsername);
 		boolean ending = chat.getActiveParticipantCount() < 2;
 		for (String participant : chat.participantSet()) {
 			int id = push(ending ? ChatEnd(chat.getUUID())
@@ -245,9 +243,8 @@ public class ClientHandler {
 			return;
 		}
 
-		server.chatLookup.get(chatUUID);
 		// you can only send messages to chats you belong to.
-		if (!server.userToChatIDs.get(currentUsername).contains(chatUUID)) {
+		if (!server.chatIDsOf(currentUsername).contains(chatUUID)) {
 			System.out.println("User " + currentUsername + " not in chat " + chatUUID.toString());
 			statusCode(reqId, NOT_FOUND); // chat doesn't exist
 			return;
@@ -267,13 +264,13 @@ public class ClientHandler {
 		}
 
 		// you can only send messages to chats you belong to.
-		if (!server.userToChatIDs.get(currentUsername).contains(chatUUID)) {
+		if (!server.chatIDsOf(currentUsername).contains(chatUUID)) {
 			System.out.println("Chat " + chatUUID.toString() + " not found for user " + currentUsername);
 			statusCode(reqId, NOT_FOUND); // chat doesn't exist
 			return;
 		}
 
-		Chat chat = server.chatLookup.get(chatUUID);
+		Chat chat = server.getChat(chatUUID);
 		statusCode(reqId, CONTINUE); // notify sender to send (packetized) message
 		Persistable mess = comm.readResponse(reqId, new Encrypted(), true);
 		statusCode(reqId, OK);
@@ -292,13 +289,13 @@ public class ClientHandler {
 		UUID chatUUID = null;
 		// lookup all chats for offendingUser. if multiple chats have offendingUser,
 		// doesn't matter. it's a reported offendingUser.
-		Set<UUID> chats = server.userToChatIDs.get(currentUsername);
-		if (chats == null) { // none found
+		ChatIDs chats = server.chatIDsOf(currentUsername);
+		if (chats.isEmpty()) { // none found
 			statusCode(reqId, NOT_FOUND); return;
 		}
 
 		for (UUID chatID : chats) {
-			Chat chat = server.chatLookup.get(chatID);
+			Chat chat = server.getChat(chatID);
 			if (chat == null) continue;
 			if (chat.participantSet().contains(offendingUser)) {
 				found = true;
@@ -339,11 +336,8 @@ public class ClientHandler {
 	}
 
 	private void removeCurrentUserFromAllChats() throws IOException {
-		Set<UUID> chatIDs = server.userToChatIDs.get(currentUsername);
-		if (chatIDs != null) {
-			for (UUID id : chatIDs) {
-				removeCurrentUserFromChat(id);
-			}
+		for (UUID id : server.chatIDsOf(currentUsername)) {
+			removeCurrentUserFromChat(id);
 		}
 	}
 
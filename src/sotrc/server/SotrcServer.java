@@ -19,9 +19,11 @@ public class SotrcServer implements Runnable {
 	final PersistentKeyValueStore<Persistable> blockedUsers; // used like hash set
 	final PersistentKeyValueStore<Encrypted> contacts; // encrypted blobs
 
+	// live connections, so kept on the heap
 	final Map<String, Communicator<Notification, ClientAction>> loggedInUsers;
-	final Map<UUID, Chat> chatLookup; // chat UUID -> chat
-	final Map<String, Set<UUID>> userToChatIDs; // username -> chat
+	// off the heap, as there may be tens of thousands of chats
+	final OffHeapStore<Chat> chatLookup; // chat UUID -> chat
+	final OffHeapStore<ChatIDs> userToChatIDs; // username -> chat
 
 	private final ExecutorService pool;
 
@@ -29,15 +31,29 @@ public class SotrcServer implements Runnable {
 	private int activeClients;
 
 	public SotrcServer() throws IOException {
+		StoreOptions options = new StoreOptions();
+		options.writeAheadLog = true; // survives crashes mid-write
+		options.compactionRatio = 0.25f; // contacts are removed, accounts rewritten
+		options.cacheEntries = 1024; // every login rereads the same accounts
+		options.bloomFilter = true; // logins probe blockedUsers, which rarely has the key
 		accounts = new PersistentKeyValueStore<Account>(
-			new File(ServerProperties.SOTRC_ACCOUNTS_DIR), 512, 512);
+			new File(ServerProperties.SOTRC_ACCOUNTS_DIR), 512, 512, options);
 		blockedUsers = new PersistentKeyValueStore<Persistable>(
-			new File(ServerProperties.SOTRC_BLOCKEDUSERS_DIR), 512, 512);
-		contacts = new PersistentKeyValueStore<Encrypted>(
-			new File(ServerProperties.SOTRC_CONTACTS_DIR), 512, 512);
+			new File(ServerProperties.SOTRC_BLOCKEDUSERS_DIR), 512, 512, options);
+		// contacts are only added and removed; a store created before keeps
+		// its hash index, with the same options as the others
+		File contactsDir = new File(ServerProperties.SOTRC_CONTACTS_DIR);
+		StoreOptions contactOptions = options;
+		if (PersistentKeyValueStore.engineOf(contactsDir) != StoreOptions.EngineType.HASH) {
+			contactOptions = new StoreOptions();
+			contactOptions.engine = StoreOptions.EngineType.LOG_STRUCTURED;
+			contactOptions.cacheEntries = 1024;
+		}
+		contacts = new PersistentKeyValueStore<Encrypted>(contactsDir, 512, 512,
+			contactOptions);
 		pool = Executors.newCachedThreadPool();
-		chatLookup = new ConcurrentHashMap<UUID, Chat>();
-		userToChatIDs = new ConcurrentHashMap<String, Set<UUID>>();
+		chatLookup = new OffHeapStore<Chat>(1024);
+		userToChatIDs = new OffHeapStore<ChatIDs>(1024);
 		loggedInUsers = new ConcurrentHashMap<String, Communicator<Notification, ClientAction>>();
 	}
 
@@ -53,14 +69,40 @@ public class SotrcServer implements Runnable {
 	 * API for userToChatIDs map.
 	 */
 	synchronized void addUserToChat(String username, Chat chat) {
-		Set<UUID> userChatList = null;
-		if (!this.userToChatIDs.containsKey(username)) {
-			userChatList = new HashSet<UUID>();
-		} else {
-			userChatList = userToChatIDs.get(username);
-		}
+		ChatIDs userChatList = new ChatIDs();
+		userToChatIDs.get(username, userChatList); // stays empty if none
 		userChatList.add(chat.getUUID());
-		this.userToChatIDs.put(username, userChatList);
+		userToChatIDs.put(username, userChatList);
+	}
+
+	/**
+	 * @return the IDs of the chats of the user, empty if none
+	 */
+	ChatIDs chatIDsOf(String username) {
+		ChatIDs userChatList = new ChatIDs();
+		userToChatIDs.get(username, userChatList);
+		return userChatList;
+	}
+
+	/**
+	 * @return the chat, or null if there is none
+	 */
+	Chat getChat(UUID chatID) {
+		Chat chat = new Chat();
+		return chatLookup.get(chatID, chat) ? chat : null;
+	}
+
+	/**
+	 * Removes the user from the participants of the chat.
+	 * @return the chat as it is now, or null if there is none
+	 */
+	synchronized Chat removeUserFromChat(String username, UUID chatID) {
+		Chat chat = getChat(chatID);
+		if (chat != null) {
+			chat.removeParticipant(username);
+			chatLookup.put(chatID, chat);
+		}
+		return chat;
 	}
 
 	public void run() {